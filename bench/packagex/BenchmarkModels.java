@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package packagex;
+
+import beast.core.parameter.IntegerParameter;
+import beast.core.parameter.RealParameter;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.Tree;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic reaction networks and reaction trees used by the benchmarks.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class BenchmarkModels {
+
+    public enum Network { BIRTH_DEATH, SIR, MIGRATION }
+
+    /**
+     * Number of demes in the MIGRATION network.
+     */
+    public static final int N_DEMES = 3;
+
+    /**
+     * Construct one of the benchmark reaction networks.
+     *
+     * @param network network to construct
+     * @return initialised model
+     * @throws Exception
+     */
+    public static Model createModel(Network network) throws Exception {
+        Model model = new Model();
+        model.setID(network.toString());
+
+        switch (network) {
+            case BIRTH_DEATH: {
+                Type X = createType("X");
+                model.initByName(
+                    "timeOfOrigin", new RealParameter(new Double[] {10.0}),
+                    "type", X,
+                    "reaction", createReaction(1.0, types(X), types(X, X), 0, -1),
+                    "reaction", createReaction(0.5, types(X), types()),
+                    "initialPopSize", createPopSize(X, 1),
+                    "originType", X);
+                break;
+            }
+
+            case SIR: {
+                Type S = createType("S");
+                Type I = createType("I");
+                Type R = createType("R");
+                model.initByName(
+                    "timeOfOrigin", new RealParameter(new Double[] {10.0}),
+                    "type", S, "type", I, "type", R,
+                    "reaction", createReaction(0.003, types(S, I), types(I, I), 1, -1),
+                    "reaction", createReaction(1.0, types(I), types(R), 0),
+                    "initialPopSize", createPopSize(S, 1000),
+                    "initialPopSize", createPopSize(I, 1),
+                    "originType", I);
+                break;
+            }
+
+            case MIGRATION: {
+                List<Object> args = new ArrayList<>();
+                args.add("timeOfOrigin");
+                args.add(new RealParameter(new Double[] {10.0}));
+
+                Type[] demes = new Type[N_DEMES];
+                for (int d=0; d<N_DEMES; d++) {
+                    demes[d] = createType("X" + d);
+                    args.add("type");
+                    args.add(demes[d]);
+                }
+
+                for (int d=0; d<N_DEMES; d++) {
+                    args.add("reaction");
+                    args.add(createReaction(1.0,
+                        types(demes[d]), types(demes[d], demes[d]), 0, -1));
+                    args.add("reaction");
+                    args.add(createReaction(0.6, types(demes[d]), types()));
+
+                    for (int dp=0; dp<N_DEMES; dp++) {
+                        if (dp == d)
+                            continue;
+
+                        args.add("reaction");
+                        args.add(createReaction(0.1,
+                            types(demes[d]), types(demes[dp]), 0));
+                    }
+                }
+
+                args.add("initialPopSize");
+                args.add(createPopSize(demes[0], 1));
+                args.add("originType");
+                args.add(demes[0]);
+
+                model.initByName(args.toArray());
+                break;
+            }
+
+            default:
+                throw new IllegalArgumentException("Unknown network.");
+        }
+
+        return model;
+    }
+
+    private static Type createType(String id) {
+        Type type = new Type();
+        type.setID(id);
+        return type;
+    }
+
+    private static Type[] types(Type ... types) {
+        return types;
+    }
+
+    private static Reaction createReaction(double rate, Type[] reactants,
+        Type[] products, int ... p2rMap) throws Exception {
+        List<Object> args = new ArrayList<>();
+        for (Type type : reactants) {
+            args.add("reactant");
+            args.add(type);
+        }
+        for (int i=0; i<products.length; i++) {
+            args.add("product");
+            args.add(products[i]);
+            args.add("p2rMap");
+            args.add(p2rMap[i]);
+        }
+        args.add("rate");
+        args.add(new RealParameter(new Double[] {rate}));
+
+        Reaction react = new Reaction();
+        react.initByName(args.toArray());
+
+        return react;
+    }
+
+    private static PopulationSize createPopSize(Type type, int size)
+        throws Exception {
+        PopulationSize popSize = new PopulationSize();
+        popSize.initByName(
+            "popType", type,
+            "popSize", new IntegerParameter(new Integer[] {size}));
+
+        return popSize;
+    }
+
+    /**
+     * Generate a random serially sampled reaction tree for the given
+     * model.  The topology and relative node heights are drawn from the
+     * coalescent, and heights are scaled so that the root lies at 80%
+     * of the time of origin.  Internal nodes are assigned the first
+     * reaction which increases the number of individuals, and leaves the
+     * first reaction which decreases it.
+     *
+     * @param model model
+     * @param nLeaves number of leaves
+     * @param seed random seed
+     * @return reaction tree
+     * @throws Exception
+     */
+    public static ReactionTree createTree(Model model, int nLeaves, long seed)
+        throws Exception {
+        Random random = new Random(seed);
+
+        Node[] nodes = new Node[2*nLeaves-1];
+        for (int i=0; i<nLeaves; i++) {
+            nodes[i] = new ReactionNode();
+            nodes[i].setNr(i);
+            nodes[i].setHeight(random.nextDouble());
+        }
+        Arrays.sort(nodes, 0, nLeaves,
+            (a, b) -> Double.compare(a.getHeight(), b.getHeight()));
+
+        List<Node> active = new ArrayList<>();
+        int nextLeaf = 0;
+        int nextNr = nLeaves;
+        double t = 0.0;
+        while (nextLeaf < nLeaves || active.size() > 1) {
+            int k = active.size();
+            double tCoal = k > 1
+                ? t - Math.log(random.nextDouble())/(0.5*k*(k-1))
+                : Double.POSITIVE_INFINITY;
+
+            if (nextLeaf < nLeaves && nodes[nextLeaf].getHeight() < tCoal) {
+                t = nodes[nextLeaf].getHeight();
+                active.add(nodes[nextLeaf++]);
+                continue;
+            }
+
+            t = tCoal;
+            Node left = active.remove(random.nextInt(active.size()));
+            Node right = active.remove(random.nextInt(active.size()));
+
+            Node parent = new ReactionNode();
+            parent.setNr(nextNr);
+            parent.setHeight(t);
+            parent.addChild(left);
+            parent.addChild(right);
+            nodes[nextNr++] = parent;
+            active.add(parent);
+        }
+
+        Node root = active.get(0);
+        double scale = 0.8*model.originInput.get().getValue()/root.getHeight();
+        for (Node node : nodes)
+            node.setHeight(node.getHeight()*scale);
+
+        ReactionTree tree = new ReactionTree();
+        tree.assignFrom(new Tree(root));
+
+        Reaction branching = null, terminal = null;
+        for (Reaction react : model.getReactions()) {
+            int change = react.productsInput.get().size()
+                - react.reactantsInput.get().size();
+            if (branching == null && change > 0)
+                branching = react;
+            if (terminal == null && change < 0)
+                terminal = react;
+        }
+
+        for (Node node : tree.getNodesAsArray())
+            ((ReactionNode)node).setReaction(node.isLeaf() ? terminal : branching);
+
+        return tree;
+    }
+}
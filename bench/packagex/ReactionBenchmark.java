@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package packagex;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of propensity calculation and state updates.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReactionBenchmark {
+
+    @Param({"BIRTH_DEATH", "SIR", "MIGRATION"})
+    public BenchmarkModels.Network network;
+
+    // Scale applied to the initial population sizes.
+    @Param({"100"})
+    public int popScale;
+
+    Model model;
+    Reaction[] reactions;
+    ReactionPropensities propensities;
+    SystemState initialState, state;
+
+    @Setup
+    public void setup() throws Exception {
+        model = BenchmarkModels.createModel(network);
+        reactions = model.getReactions().toArray(new Reaction[0]);
+        propensities = new ReactionPropensities(model);
+
+        initialState = new SystemState(model.getInitialState());
+        for (Type type : model.getTypes())
+            initialState.put(type, popScale*(initialState.get(type) + 1));
+        state = new SystemState(initialState);
+    }
+
+    /**
+     * Full recalculation of all reaction propensities.
+     */
+    @Benchmark
+    public double calculatePropensities() {
+        propensities.calculate(state);
+        return propensities.getTotal();
+    }
+
+    /**
+     * Incremental propensity update following each reaction in turn.
+     */
+    @Benchmark
+    public double updatePropensities() {
+        for (Reaction react : reactions)
+            propensities.update(state, react);
+        return propensities.getTotal();
+    }
+
+    /**
+     * Reactant permutation counts for every reaction.
+     */
+    @Benchmark
+    public double getReactantPermutations() {
+        double sum = 0.0;
+        for (Reaction react : reactions)
+            sum += react.getReactantPermutations(state);
+        return sum;
+    }
+
+    /**
+     * Apply every reaction once, starting from the initial state.
+     * (Includes the cost of resetting the state.)
+     */
+    @Benchmark
+    public SystemState incrementState() {
+        state.assignFrom(initialState);
+        for (Reaction react : reactions)
+            react.incrementState(state);
+        return state;
+    }
+}
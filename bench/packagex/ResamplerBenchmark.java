@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package packagex;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of particle resampling.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResamplerBenchmark {
+
+    @Param({"MULTINOMIAL", "STRATIFIED", "SYSTEMATIC", "RESIDUAL"})
+    public Resampler.Scheme scheme;
+
+    @Param({"100", "1000", "10000"})
+    public int nParticles;
+
+    Resampler resampler;
+    RandomStream rng;
+    double[] weights;
+    int[] ancestors;
+
+    @Setup
+    public void setup() {
+        resampler = new Resampler(scheme, nParticles);
+        rng = new RandomStream(1);
+        ancestors = new int[nParticles];
+
+        // Log-normally distributed weights, normalised to sum to one.
+        weights = new double[nParticles];
+        double sum = 0.0;
+        for (int p=0; p<nParticles; p++) {
+            weights[p] = Math.exp(2.0*rng.nextGaussian());
+            sum += weights[p];
+        }
+        for (int p=0; p<nParticles; p++)
+            weights[p] /= sum;
+    }
+
+    @Benchmark
+    public int[] resample() {
+        resampler.resample(weights, 1.0, ancestors, rng);
+        return ancestors;
+    }
+
+    @Benchmark
+    public double getESS() {
+        return Resampler.getESS(weights);
+    }
+}
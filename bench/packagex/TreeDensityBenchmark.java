@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package packagex;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of complete tree density evaluations, using generated
+ * trees of varying size.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TreeDensityBenchmark {
+
+    @Param({"BIRTH_DEATH", "SIR", "MIGRATION"})
+    public BenchmarkModels.Network network;
+
+    @Param({"100", "1000"})
+    public int nLeaves;
+
+    @Param({"100"})
+    public int nParticles;
+
+    @Param({"direct", "populationDirect", "nextReaction", "tauLeap", "hybrid"})
+    public String propagator;
+
+    @Param({"1"})
+    public int threads;
+
+    TreeDensity treeDensity;
+
+    @Setup
+    public void setup() throws Exception {
+        Model model = BenchmarkModels.createModel(network);
+        ReactionTree tree = BenchmarkModels.createTree(model, nLeaves, 1);
+
+        ParticlePropagator particlePropagator;
+        switch (propagator) {
+            case "direct":
+                particlePropagator = new DirectPropagator();
+                break;
+            case "populationDirect":
+                particlePropagator = new PopulationDirectPropagator();
+                break;
+            case "nextReaction":
+                particlePropagator = new NextReactionPropagator();
+                break;
+            case "tauLeap":
+                particlePropagator = new TauLeapPropagator();
+                break;
+            case "hybrid":
+                particlePropagator = new HybridPropagator();
+                break;
+            default:
+                throw new IllegalArgumentException(
+                    "Unknown propagator " + propagator);
+        }
+        particlePropagator.initAndValidate();
+
+        treeDensity = new TreeDensity();
+        treeDensity.initByName(
+            "mode", model,
+            "typedTree", tree,
+            "nParticles", nParticles,
+            "propagator", particlePropagator,
+            "threads", threads);
+    }
+
+    @Benchmark
+    public double calculateLogP() throws Exception {
+        return treeDensity.calculateLogP();
+    }
+}
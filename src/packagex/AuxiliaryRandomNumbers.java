@@ -0,0 +1,335 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package packagex;
+
+import beast.core.BEASTObject;
+import beast.core.Operator;
+import beast.core.StateNode;
+import beast.util.Randomizer;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Auxiliary random numbers driving the particle filter in TreeDensity,
+ * held as part of the MCMC state for correlated pseudo-marginal
+ * inference.  Comprises blocks of independent standard normal variables,
+ * one block for each interval of the tree, and a seed for the
+ * pseudorandom streams used once these are exhausted.
+ *
+ * Blocks are drawn lazily from a fixed seed the first time they are
+ * used, and only blocks which have since been perturbed are held in the
+ * state file.  No prior needs to be placed on this state node provided
+ * it is only modified by CrankNicolsonOperator; other operators are
+ * rejected.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class AuxiliaryRandomNumbers extends StateNode {
+
+    long seed, storedSeed;
+
+    // Seed from which unperturbed blocks are drawn.
+    long valuesSeed;
+
+    int blockLength;
+
+    // Blocks are never modified in place, so may be shared between the
+    // current and stored state.  Null blocks have not yet been drawn.
+    double[][] blocks = new double[0][], storedBlocks = new double[0][];
+    boolean[] perturbed = new boolean[0], storedPerturbed = new boolean[0];
+
+    // Index of the first block modified since the last store or restore.
+    int firstDirtyBlock;
+
+    @Override
+    public void initAndValidate() throws Exception {
+        seed = Randomizer.nextLong();
+        valuesSeed = Randomizer.nextLong();
+    }
+
+    /**
+     * Set the number and length of blocks.  Existing blocks are kept if
+     * the block length is unchanged.
+     *
+     * @param blockCount number of blocks
+     * @param blockLength number of variables in each block
+     */
+    public void setBlocks(int blockCount, int blockLength) {
+        if (blockLength != this.blockLength) {
+            this.blockLength = blockLength;
+            blocks = new double[0][];
+            perturbed = new boolean[0];
+        }
+
+        if (blockCount != blocks.length) {
+            blocks = Arrays.copyOf(blocks, blockCount);
+            perturbed = Arrays.copyOf(perturbed, blockCount);
+        }
+
+        storedBlocks = new double[blockCount][];
+        storedPerturbed = new boolean[blockCount];
+        firstDirtyBlock = 0;
+    }
+
+    /**
+     * @return number of blocks
+     */
+    public int getBlockCount() {
+        return blocks.length;
+    }
+
+    /**
+     * @return number of variables in each block
+     */
+    public int getBlockLength() {
+        return blockLength;
+    }
+
+    /**
+     * Retrieve a block of auxiliary standard normal variables, drawing it
+     * if this has not yet been done.  The first call for each block must
+     * not be made concurrently with other calls.
+     *
+     * @param b index of block
+     * @return block (not to be modified)
+     */
+    public double[] getBlock(int b) {
+        if (blocks[b] == null) {
+            RandomStream rng = new RandomStream(
+                RandomStream.deriveSeed(valuesSeed, b, 0));
+            double[] block = new double[blockLength];
+            for (int i=0; i<blockLength; i++)
+                block[i] = rng.nextGaussian();
+            blocks[b] = block;
+        }
+
+        return blocks[b];
+    }
+
+    /**
+     * @return seed of pseudorandom streams
+     */
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * @return index of the first block which may have changed since the
+     * state was last stored, or 0 if the seed may have changed.
+     */
+    public int getFirstDirtyBlock() {
+        return firstDirtyBlock;
+    }
+
+    /**
+     * Replace the variables v of a block with rho*v + sqrt(1-rho^2)*z for
+     * standard normal z.  This leaves the standard normal distribution
+     * invariant and is reversible with respect to it.  Operators must
+     * call startEditing() first.
+     *
+     * @param b index of block
+     * @param rho correlation between old and new values
+     * @param rng stream from which z is drawn
+     */
+    public void perturbBlock(int b, double rho, RandomStream rng) {
+        double[] block = getBlock(b);
+        double[] newBlock = new double[blockLength];
+        double scale = Math.sqrt(1.0 - rho*rho);
+        for (int i=0; i<blockLength; i++)
+            newBlock[i] = rho*block[i] + scale*rng.nextGaussian();
+
+        blocks[b] = newBlock;
+        perturbed[b] = true;
+        firstDirtyBlock = Math.min(firstDirtyBlock, b);
+    }
+
+    /**
+     * Replace the seed for the pseudorandom streams.  Operators must call
+     * startEditing() first.
+     *
+     * @param newSeed new seed
+     */
+    public void setSeed(long newSeed) {
+        seed = newSeed;
+        firstDirtyBlock = 0;
+    }
+
+    /**
+     * Ensure no operator other than CrankNicolsonOperator modifies these
+     * variables, as their distribution would then no longer be standard
+     * normal.
+     */
+    public void checkOperators() {
+        for (Object output : getOutputs()) {
+            if (output instanceof Operator
+                && !(output instanceof CrankNicolsonOperator))
+                throw new IllegalArgumentException("Auxiliary random numbers "
+                    + getID() + " may only be operated on by "
+                    + "CrankNicolsonOperator, not "
+                    + ((BEASTObject)output).getID() + ".");
+        }
+    }
+
+    @Override
+    public void setEverythingDirty(boolean isDirty) {
+        setSomethingIsDirty(isDirty);
+        firstDirtyBlock = isDirty ? 0 : blocks.length;
+    }
+
+    @Override
+    public StateNode copy() {
+        AuxiliaryRandomNumbers copy = new AuxiliaryRandomNumbers();
+        copy.setID(getID());
+        copy.index = index;
+        copy.assignFromFragile(this);
+        return copy;
+    }
+
+    @Override
+    public void assignTo(StateNode other) {
+        other.assignFrom(this);
+    }
+
+    @Override
+    public void assignFrom(StateNode other) {
+        AuxiliaryRandomNumbers aux = (AuxiliaryRandomNumbers)other;
+        setID(aux.getID());
+        index = aux.index;
+        assignFromFragile(other);
+    }
+
+    @Override
+    public void assignFromFragile(StateNode other) {
+        AuxiliaryRandomNumbers aux = (AuxiliaryRandomNumbers)other;
+        seed = aux.seed;
+        valuesSeed = aux.valuesSeed;
+        blockLength = aux.blockLength;
+        blocks = aux.blocks.clone();
+        perturbed = aux.perturbed.clone();
+        storedBlocks = new double[blocks.length][];
+        storedPerturbed = new boolean[blocks.length];
+        firstDirtyBlock = 0;
+    }
+
+    /**
+     * Restore from the format written by toString(): the seed, the seed
+     * of unperturbed blocks, the block count and length, then the index
+     * and variables of each perturbed block.
+     */
+    @Override
+    public void fromXML(org.w3c.dom.Node node) {
+        String[] strValues = node.getTextContent().trim().split("\\s+");
+        seed = Long.parseLong(strValues[0]);
+        valuesSeed = Long.parseLong(strValues[1]);
+        blockLength = Integer.parseInt(strValues[3]);
+        blocks = new double[Integer.parseInt(strValues[2])][];
+        perturbed = new boolean[blocks.length];
+
+        for (int i=4; i<strValues.length; i += blockLength+1) {
+            int b = Integer.parseInt(strValues[i]);
+            blocks[b] = new double[blockLength];
+            for (int j=0; j<blockLength; j++)
+                blocks[b][j] = Double.parseDouble(strValues[i+1+j]);
+            perturbed[b] = true;
+        }
+
+        storedBlocks = new double[blocks.length][];
+        storedPerturbed = new boolean[blocks.length];
+        firstDirtyBlock = 0;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(seed).append(" ").append(valuesSeed).append(" ")
+            .append(blocks.length).append(" ").append(blockLength);
+        for (int b=0; b<blocks.length; b++) {
+            if (!perturbed[b])
+                continue;
+
+            sb.append(" ").append(b);
+            for (double value : blocks[b])
+                sb.append(" ").append(value);
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public int scale(double fScale) throws Exception {
+        // Unreachable once checkOperators() has been called.
+        throw new IllegalArgumentException(
+            "Auxiliary random numbers cannot be scaled.");
+    }
+
+    @Override
+    protected void store() {
+        System.arraycopy(blocks, 0, storedBlocks, 0, blocks.length);
+        System.arraycopy(perturbed, 0, storedPerturbed, 0, blocks.length);
+        storedSeed = seed;
+        firstDirtyBlock = blocks.length;
+    }
+
+    @Override
+    public void restore() {
+        double[][] tmpBlocks = blocks;
+        blocks = storedBlocks;
+        storedBlocks = tmpBlocks;
+        boolean[] tmpPerturbed = perturbed;
+        perturbed = storedPerturbed;
+        storedPerturbed = tmpPerturbed;
+        seed = storedSeed;
+        firstDirtyBlock = blocks.length;
+        hasStartedEditing = false;
+    }
+
+    /*
+     * Loggable implementation.  Only the seed is logged: perturbed blocks
+     * are recorded in the state file.
+     */
+
+    @Override
+    public void init(PrintStream out) throws Exception {
+        out.print(getID() + ".seed\t");
+    }
+
+    @Override
+    public void log(int nSample, PrintStream out) {
+        out.print(seed + "\t");
+    }
+
+    @Override
+    public void close(PrintStream out) { }
+
+    /*
+     * Function implementation.
+     */
+
+    @Override
+    public int getDimension() {
+        return blocks.length*blockLength;
+    }
+
+    @Override
+    public double getArrayValue() {
+        return getArrayValue(0);
+    }
+
+    @Override
+    public double getArrayValue(int i) {
+        return getBlock(i/blockLength)[i%blockLength];
+    }
+}
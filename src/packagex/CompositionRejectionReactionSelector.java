@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package packagex;
+
+import java.util.Arrays;
+
+/**
+ * Reaction selector implementing the composition-rejection scheme of
+ * Slepoy, Thompson and Plimpton (2008).  Reactions are grouped by the
+ * binary exponent of their propensity; a group is chosen by linear search
+ * over the (few) non-empty groups, then a member of that group by
+ * rejection sampling, which accepts with probability at least 1/2.
+ * Updates are O(1).
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class CompositionRejectionReactionSelector extends ReactionSelector {
+
+    /**
+     * Number of updates after which group sums and the total propensity
+     * are recomputed from scratch to limit round-off drift.
+     */
+    public static int RESUM_INTERVAL = 1000;
+
+    // Math.getExponent() of a positive double lies in [-1023, 1023].
+    private static final int EXPONENT_OFFSET = 1023;
+    private static final int N_GROUPS = 2047;
+
+    double[] propensities;
+    int[] groupOf, posInGroup;
+
+    int[][] groupMembers = new int[N_GROUPS][];
+    int[] groupSizes = new int[N_GROUPS];
+    double[] groupSums = new double[N_GROUPS];
+    double[] groupBounds = new double[N_GROUPS];
+
+    int[] activeGroups = new int[N_GROUPS];
+    int[] activePos = new int[N_GROUPS];
+    int nActive;
+
+    double total;
+    int updatesSinceResum;
+
+    public CompositionRejectionReactionSelector(int nReactions) {
+        propensities = new double[nReactions];
+        groupOf = new int[nReactions];
+        posInGroup = new int[nReactions];
+
+        for (int g=0; g<N_GROUPS; g++)
+            groupBounds[g] = Math.scalb(1.0, g - EXPONENT_OFFSET + 1);
+
+        Arrays.fill(groupOf, -1);
+    }
+
+    @Override
+    public void reset(double[] newPropensities) {
+        for (int r=0; r<propensities.length; r++)
+            update(r, newPropensities[r]);
+
+        resum();
+    }
+
+    @Override
+    public void update(int r, double propensity) {
+        int oldGroup = groupOf[r];
+        int newGroup = propensity > 0.0
+            ? Math.getExponent(propensity) + EXPONENT_OFFSET
+            : -1;
+
+        if (oldGroup >= 0) {
+            groupSums[oldGroup] -= propensities[r];
+            if (oldGroup != newGroup)
+                removeFromGroup(r, oldGroup);
+        }
+
+        if (newGroup >= 0) {
+            groupSums[newGroup] += propensity;
+            if (oldGroup != newGroup)
+                addToGroup(r, newGroup);
+        }
+
+        total += propensity - propensities[r];
+        propensities[r] = propensity;
+
+        updatesSinceResum += 1;
+        if (updatesSinceResum >= RESUM_INTERVAL)
+            resum();
+    }
+
+    private void addToGroup(int r, int g) {
+        if (groupMembers[g] == null)
+            groupMembers[g] = new int[propensities.length];
+
+        if (groupSizes[g] == 0) {
+            activePos[g] = nActive;
+            activeGroups[nActive++] = g;
+        }
+
+        posInGroup[r] = groupSizes[g];
+        groupMembers[g][groupSizes[g]++] = r;
+        groupOf[r] = g;
+    }
+
+    private void removeFromGroup(int r, int g) {
+        int last = groupMembers[g][--groupSizes[g]];
+        groupMembers[g][posInGroup[r]] = last;
+        posInGroup[last] = posInGroup[r];
+        groupOf[r] = -1;
+
+        if (groupSizes[g] == 0) {
+            groupSums[g] = 0.0;
+
+            int lastActive = activeGroups[--nActive];
+            activeGroups[activePos[g]] = lastActive;
+            activePos[lastActive] = activePos[g];
+        }
+    }
+
+    private void resum() {
+        total = 0.0;
+        for (int a=0; a<nActive; a++) {
+            int g = activeGroups[a];
+            groupSums[g] = 0.0;
+            for (int i=0; i<groupSizes[g]; i++)
+                groupSums[g] += propensities[groupMembers[g][i]];
+
+            total += groupSums[g];
+        }
+
+        updatesSinceResum = 0;
+    }
+
+    @Override
+    public double getTotal() {
+        return total;
+    }
+
+    @Override
+    public int select(RandomStream rng) {
+        if (nActive == 0)
+            throw new IllegalStateException("Reaction-choosing loop fell through!");
+
+        // Choose group
+        double u = rng.nextDouble()*total;
+        int g = activeGroups[nActive-1];
+        for (int a=0; a<nActive; a++) {
+            u -= groupSums[activeGroups[a]];
+            if (u<0) {
+                g = activeGroups[a];
+                break;
+            }
+        }
+
+        // Choose reaction within group by rejection
+        int[] members = groupMembers[g];
+        int n = groupSizes[g];
+        double bound = groupBounds[g];
+        while (true) {
+            int r = members[rng.nextInt(n)];
+            if (rng.nextDouble()*bound < propensities[r])
+                return r;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package packagex;
+
+import beast.core.Input;
+import beast.core.Input.Validate;
+import beast.core.Operator;
+import beast.util.Randomizer;
+
+/**
+ * Crank-Nicolson proposal for the auxiliary random numbers driving a
+ * correlated pseudo-marginal particle filter.  Each proposal perturbs a
+ * few randomly chosen blocks of variables, so its cost does not grow
+ * with the size of the tree or the number of particles.  The proposal is
+ * reversible with respect to the standard normal distribution of the
+ * auxiliary variables, so the Hastings ratio is zero and the move is
+ * accepted according to the ratio of likelihood estimates alone.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class CrankNicolsonOperator extends Operator {
+
+    public Input<AuxiliaryRandomNumbers> auxInput = new Input<>(
+        "auxiliaryRandomNumbers", "Auxiliary random numbers to perturb.",
+        Validate.REQUIRED);
+
+    public Input<Double> rhoInput = new Input<>("rho",
+        "Correlation between current and proposed auxiliary variables. "
+            + "(Default 0.99.)", 0.99);
+
+    public Input<Integer> blocksPerProposalInput = new Input<>(
+        "blocksPerProposal",
+        "Number of blocks (chosen with replacement) perturbed by each "
+            + "proposal. (Default 1.)", 1);
+
+    public Input<Double> seedRefreshProbInput = new Input<>(
+        "seedRefreshProbability",
+        "Probability with which the seed used once the auxiliary variables "
+            + "are exhausted is also redrawn. (Default 0.05.)", 0.05);
+
+    AuxiliaryRandomNumbers aux;
+    double rho, seedRefreshProb;
+    int blocksPerProposal;
+
+    // Perturbations are drawn from a local stream rather than from the
+    // (synchronised) global Randomizer.
+    RandomStream rng;
+
+    @Override
+    public void initAndValidate() throws Exception {
+        aux = auxInput.get();
+        rho = rhoInput.get();
+        seedRefreshProb = seedRefreshProbInput.get();
+        blocksPerProposal = blocksPerProposalInput.get();
+        rng = new RandomStream(Randomizer.nextLong());
+
+        if (rho < 0.0 || rho >= 1.0)
+            throw new IllegalArgumentException("rho must lie in [0,1).");
+
+        aux.checkOperators();
+    }
+
+    @Override
+    public double proposal() {
+        aux.startEditing(this);
+
+        for (int i=0; i<blocksPerProposal; i++)
+            aux.perturbBlock(rng.nextInt(aux.getBlockCount()), rho, rng);
+        if (rng.nextDouble() < seedRefreshProb)
+            aux.setSeed(rng.nextLong());
+
+        return 0.0;
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package packagex;
+
+/**
+ * Propagates particles using Gillespie's direct method: an exponential
+ * waiting time for the total propensity followed by a choice of reaction
+ * proportional to the individual propensities.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class DirectPropagator extends ParticlePropagator {
+
+    @Override
+    public double propagate(Workspace ws, ParticleState particleState,
+        double startTime, double endTime) {
+        double logConditionalP = 0.0;
+
+        double t = startTime;
+
+        // Calculate reaction propensities
+        ReactionPropensities propensities = ws.propensities;
+        propensities.calculate(particleState);
+
+        while (true) {
+
+            // Increment time
+            if (propensities.getTotal()>0.0)
+                t += ws.rng.nextExponential(propensities.getTotal());
+            else
+                t = Double.POSITIVE_INFINITY;
+
+            // Stop if t>endTime
+            if (t>endTime)
+                break;
+
+            // Choose reaction:
+            Reaction react = propensities.select(ws.rng);
+
+            // Implement state change
+            react.incrementState(particleState);
+            propensities.update(particleState, react);
+
+            logConditionalP += reactionFired(ws, particleState, react, 1, t);
+        }
+
+        return logConditionalP;
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package packagex;
+
+/**
+ * Snapshot of the particle population taken at the start of a tree
+ * interval, from which the particle filter can be resumed when only
+ * later intervals of the tree have changed.  Particle states are shared
+ * copy-on-write with the live population, so taking a checkpoint costs
+ * O(N) reference updates.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class FilterCheckpoint {
+
+    final ParticleState[] states;
+    final double[] logWeights;
+    final int[] eves;
+    int nResamplings;
+    double logP, startTime;
+
+    public FilterCheckpoint(ParticleState.Pool pool, int nParticles) {
+        states = new ParticleState[nParticles];
+        for (int p=0; p<nParticles; p++)
+            states[p] = new ParticleState(pool);
+
+        logWeights = new double[nParticles];
+        eves = new int[nParticles];
+    }
+
+    /**
+     * Record the given particle population.
+     *
+     * @param particleStates particle states
+     * @param particleLogWeights particle log weights
+     * @param particleEves indices of the initial ancestors of particles
+     * @param nResamplings number of resampling steps so far
+     * @param logP log marginal likelihood accumulated so far
+     * @param startTime time at the start of the next interval
+     */
+    public void save(ParticleState[] particleStates, double[] particleLogWeights,
+        int[] particleEves, int nResamplings, double logP, double startTime) {
+        for (int p=0; p<states.length; p++)
+            states[p].assignFrom(particleStates[p]);
+
+        System.arraycopy(particleLogWeights, 0, logWeights, 0, logWeights.length);
+        System.arraycopy(particleEves, 0, eves, 0, eves.length);
+        this.nResamplings = nResamplings;
+        this.logP = logP;
+        this.startTime = startTime;
+    }
+
+    /**
+     * Restore the recorded particle population.
+     *
+     * @param particleStates particle states to assign
+     * @param particleLogWeights particle log weights to assign
+     * @param particleEves initial ancestor indices to assign
+     */
+    public void load(ParticleState[] particleStates, double[] particleLogWeights,
+        int[] particleEves) {
+        for (int p=0; p<states.length; p++)
+            particleStates[p].assignFrom(states[p]);
+
+        System.arraycopy(logWeights, 0, particleLogWeights, 0, logWeights.length);
+        System.arraycopy(eves, 0, particleEves, 0, eves.length);
+    }
+
+    /**
+     * Make this checkpoint a copy of other.
+     *
+     * @param other checkpoint to copy
+     */
+    public void assignFrom(FilterCheckpoint other) {
+        save(other.states, other.logWeights, other.eves, other.nResamplings,
+            other.logP, other.startTime);
+    }
+
+    /**
+     * Return storage of recorded particle states to the pool.
+     */
+    public void release() {
+        for (ParticleState state : states)
+            state.release();
+    }
+}
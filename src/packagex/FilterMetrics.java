@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package packagex;
+
+import java.util.Arrays;
+
+/**
+ * Counters and timings describing the work done by TreeDensity's
+ * particle filter.  Cumulative totals are kept for evaluation counts;
+ * all other quantities describe the most recent evaluation.  Collection
+ * is enabled by TreeDensity.enableMetrics() and otherwise costs nothing.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class FilterMetrics {
+
+    // Totals over all evaluations
+    long evaluations, negInfEvaluations;
+
+    // Most recent evaluation
+    double logP;
+    int intervals;
+    final long[] intervalEvents;
+    final long[] reactionCounts;
+    int essCount, resamplings;
+    double essSum, minESS;
+    long propagationNanos, resamplingNanos;
+
+    /**
+     * @param nIntervals maximum number of tree intervals
+     * @param nReactions number of model reactions
+     */
+    public FilterMetrics(int nIntervals, int nReactions) {
+        intervalEvents = new long[nIntervals];
+        reactionCounts = new long[nReactions];
+    }
+
+    /**
+     * Create a copy of other.
+     *
+     * @param other metrics to copy
+     */
+    public FilterMetrics(FilterMetrics other) {
+        evaluations = other.evaluations;
+        negInfEvaluations = other.negInfEvaluations;
+        logP = other.logP;
+        intervals = other.intervals;
+        intervalEvents = other.intervalEvents.clone();
+        reactionCounts = other.reactionCounts.clone();
+        essCount = other.essCount;
+        resamplings = other.resamplings;
+        essSum = other.essSum;
+        minESS = other.minESS;
+        propagationNanos = other.propagationNanos;
+        resamplingNanos = other.resamplingNanos;
+    }
+
+    /**
+     * Make these metrics a copy of other, which must have the same
+     * dimensions.
+     *
+     * @param other metrics to copy
+     */
+    public void assignFrom(FilterMetrics other) {
+        evaluations = other.evaluations;
+        negInfEvaluations = other.negInfEvaluations;
+        logP = other.logP;
+        intervals = other.intervals;
+        System.arraycopy(other.intervalEvents, 0, intervalEvents, 0,
+            intervalEvents.length);
+        System.arraycopy(other.reactionCounts, 0, reactionCounts, 0,
+            reactionCounts.length);
+        essCount = other.essCount;
+        resamplings = other.resamplings;
+        essSum = other.essSum;
+        minESS = other.minESS;
+        propagationNanos = other.propagationNanos;
+        resamplingNanos = other.resamplingNanos;
+    }
+
+    /**
+     * @return copy of the current metrics, unaffected by later evaluations
+     */
+    public FilterMetrics snapshot() {
+        return new FilterMetrics(this);
+    }
+
+    void startEvaluation() {
+        intervals = 0;
+        Arrays.fill(intervalEvents, 0);
+        Arrays.fill(reactionCounts, 0);
+        essCount = 0;
+        resamplings = 0;
+        essSum = 0.0;
+        minESS = Double.POSITIVE_INFINITY;
+        propagationNanos = 0;
+        resamplingNanos = 0;
+    }
+
+    void endEvaluation(double logP) {
+        this.logP = logP;
+        evaluations += 1;
+        if (logP == Double.NEGATIVE_INFINITY)
+            negInfEvaluations += 1;
+    }
+
+    /**
+     * Record the events reported by a workspace over an interval, and
+     * reset the workspace counters.
+     *
+     * @param interval index of interval
+     * @param ws workspace
+     */
+    void addEvents(int interval, ParticlePropagator.Workspace ws) {
+        intervalEvents[interval] += ws.eventCount;
+        for (int r=0; r<reactionCounts.length; r++)
+            reactionCounts[r] += ws.reactionCounts[r];
+
+        ws.eventCount = 0;
+        Arrays.fill(ws.reactionCounts, 0);
+    }
+
+    void addESS(double ess) {
+        essSum += ess;
+        essCount += 1;
+        minESS = Math.min(minESS, ess);
+    }
+
+    /**
+     * @return total number of evaluations
+     */
+    public long getEvaluationCount() {
+        return evaluations;
+    }
+
+    /**
+     * @return fraction of evaluations which returned negative infinity
+     */
+    public double getNegInfFraction() {
+        return evaluations > 0 ? negInfEvaluations/(double)evaluations : 0.0;
+    }
+
+    /**
+     * @return log likelihood returned by the most recent evaluation
+     */
+    public double getLogP() {
+        return logP;
+    }
+
+    /**
+     * @return number of intervals propagated in the most recent evaluation
+     * (fewer than the number of tree intervals if it resumed from a
+     * checkpoint or returned early)
+     */
+    public int getIntervalCount() {
+        return intervals;
+    }
+
+    /**
+     * @param interval index of tree interval
+     * @return number of simulation events (reaction firings or leaps)
+     * reported by all particles over the interval
+     */
+    public long getIntervalEventCount(int interval) {
+        return intervalEvents[interval];
+    }
+
+    /**
+     * @return total number of simulation events in the most recent evaluation
+     */
+    public long getEventCount() {
+        long total = 0;
+        for (long count : intervalEvents)
+            total += count;
+        return total;
+    }
+
+    /**
+     * @param reaction reaction
+     * @return number of times reaction fired in the most recent evaluation
+     */
+    public long getReactionCount(Reaction reaction) {
+        return reactionCounts[reaction.getIndex()];
+    }
+
+    /**
+     * @return mean ESS computed prior to each resampling decision
+     */
+    public double getMeanESS() {
+        return essCount > 0 ? essSum/essCount : Double.NaN;
+    }
+
+    /**
+     * @return minimum ESS computed prior to each resampling decision
+     */
+    public double getMinESS() {
+        return essCount > 0 ? minESS : Double.NaN;
+    }
+
+    /**
+     * @return number of resampling steps in the most recent evaluation
+     */
+    public int getResamplingCount() {
+        return resamplings;
+    }
+
+    /**
+     * @return time spent propagating particles, in seconds
+     */
+    public double getPropagationTime() {
+        return propagationNanos*1e-9;
+    }
+
+    /**
+     * @return time spent resampling particles, in seconds
+     */
+    public double getResamplingTime() {
+        return resamplingNanos*1e-9;
+    }
+}
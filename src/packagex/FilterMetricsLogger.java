@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package packagex;
+
+import beast.core.BEASTObject;
+import beast.core.Input;
+import beast.core.Input.Validate;
+import beast.core.Loggable;
+import java.io.PrintStream;
+
+/**
+ * Logs the particle filter metrics of a TreeDensity.  Including this
+ * logger enables collection of the metrics.  Each row describes the
+ * evaluation which produced the logged state: metrics of rejected
+ * proposals are not logged, although they are included in the
+ * negInfFraction total.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class FilterMetricsLogger extends BEASTObject implements Loggable {
+
+    public Input<TreeDensity> treeDensityInput = new Input<>("treeDensity",
+        "Tree density whose particle filter metrics are logged.",
+        Validate.REQUIRED);
+
+    TreeDensity treeDensity;
+
+    @Override
+    public void initAndValidate() throws Exception {
+        treeDensity = treeDensityInput.get();
+        treeDensity.enableMetrics();
+    }
+
+    @Override
+    public void init(PrintStream out) throws Exception {
+        String prefix = treeDensity.getID() != null
+            ? treeDensity.getID() + "."
+            : "";
+
+        out.print(prefix + "particles\t"
+            + prefix + "negInfFraction\t"
+            + prefix + "meanESS\t"
+            + prefix + "minESS\t"
+            + prefix + "resamplings\t"
+            + prefix + "events\t"
+            + prefix + "propagationTime\t"
+            + prefix + "resamplingTime\t");
+
+        for (Reaction react : treeDensity.model.getReactions()) {
+            String name = react.getID() != null
+                ? react.getID()
+                : "reaction" + react.getIndex();
+            out.print(prefix + name + ".count\t");
+        }
+    }
+
+    @Override
+    public void log(int nSample, PrintStream out) {
+        FilterMetrics metrics = treeDensity.getAcceptedMetrics();
+
+        out.print(treeDensity.getParticleCount() + "\t"
+            + metrics.getNegInfFraction() + "\t"
+            + metrics.getMeanESS() + "\t"
+            + metrics.getMinESS() + "\t"
+            + metrics.getResamplingCount() + "\t"
+            + metrics.getEventCount() + "\t"
+            + metrics.getPropagationTime() + "\t"
+            + metrics.getResamplingTime() + "\t");
+
+        for (Reaction react : treeDensity.model.getReactions())
+            out.print(metrics.getReactionCount(react) + "\t");
+    }
+
+    @Override
+    public void close(PrintStream out) { }
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package packagex;
+
+import beast.core.Input;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Propagates particles using a hybrid deterministic/stochastic scheme.
+ * Reactions are partitioned at each step into a fast set, involving only
+ * types whose populations exceed fastThreshold and which carry no tree
+ * lineages, and a slow set containing all others.  Fast reactions are
+ * integrated as reaction rate equations (Euler) or as the chemical
+ * Langevin equation (Euler-Maruyama), while slow reactions fire exactly
+ * when their integrated propensity reaches a unit exponential threshold.
+ * Since the partition is re-evaluated after every step, reactions move
+ * between the two sets as populations grow and shrink.
+ *
+ * Fast reactions fire a real-valued number of times in each step.  These
+ * firings are accumulated, and each whole number of firings is reported
+ * to reactionFired() at the end of the step as a single event with that
+ * multiplicity, so that metrics and recorded trajectories include them.
+ * Fractional firings carry over to later steps and any remaining at the
+ * end of the interval are not reported.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class HybridPropagator extends ParticlePropagator {
+
+    /**
+     * Treatments available for fast reactions.
+     */
+    public enum FastMethod { ODE, LANGEVIN }
+
+    public Input<FastMethod> fastMethodInput = new Input<>("fastMethod",
+        "Treatment of fast reactions: ODE or LANGEVIN. (Default ODE.)",
+        FastMethod.ODE, FastMethod.values());
+
+    public Input<Long> fastThresholdInput = new Input<>("fastThreshold",
+        "Minimum population of every type involved in a reaction for the "
+            + "reaction to be treated as fast. (Default 1000.)", 1000L);
+
+    public Input<Double> epsilonInput = new Input<>("epsilon",
+        "Bound on the relative change in any fast population over a "
+            + "single integration step. (Default 0.01.)", 0.01);
+
+    public Input<Double> maxStepInput = new Input<>("maxStep",
+        "Maximum integration step size. (Default unlimited.)",
+        Double.POSITIVE_INFINITY);
+
+    FastMethod fastMethod;
+    long fastThreshold;
+    double epsilon, maxStep;
+
+    /**
+     * Workspace holding the real-valued state and reaction partition.
+     */
+    public static class HybridWorkspace extends Workspace {
+        final double[] y, propensities, mu;
+        final boolean[] fast;
+
+        // Fast firings of each reaction not yet reported.
+        final double[] fastFirings;
+
+        public HybridWorkspace(Model model) {
+            super(model);
+
+            y = new double[model.getTypeCount()];
+            mu = new double[model.getTypeCount()];
+            propensities = new double[model.getReactions().size()];
+            fast = new boolean[model.getReactions().size()];
+            fastFirings = new double[model.getReactions().size()];
+        }
+    }
+
+    @Override
+    public void initAndValidate() throws Exception {
+        fastMethod = fastMethodInput.get();
+        fastThreshold = fastThresholdInput.get();
+        epsilon = epsilonInput.get();
+        maxStep = maxStepInput.get();
+    }
+
+    @Override
+    public boolean isExact() {
+        return false;
+    }
+
+    @Override
+    public Workspace createWorkspace(Model model) {
+        return new HybridWorkspace(model);
+    }
+
+    @Override
+    public double propagate(Workspace ws, ParticleState particleState,
+        double startTime, double endTime) {
+        double logConditionalP = 0.0;
+
+        HybridWorkspace hws = (HybridWorkspace)ws;
+        double[] y = hws.y, propensities = hws.propensities, mu = hws.mu;
+        boolean[] fast = hws.fast;
+        RandomStream rng = ws.rng;
+
+        List<Reaction> reactions = ws.model.getReactions();
+        long[] counts = particleState.counts;
+
+        for (int i=0; i<y.length; i++)
+            y[i] = counts[i];
+
+        Arrays.fill(hws.fastFirings, 0.0);
+
+        // Slow reactions fire when the integrated slow propensity reaches
+        // a unit exponential threshold.
+        double slowIntegral = 0.0;
+        double slowThreshold = rng.nextExponential(1.0);
+
+        double t = startTime;
+        while (t < endTime) {
+
+            // Partition reactions and compute propensities
+            double a0slow = 0.0;
+            boolean haveFast = false;
+            Arrays.fill(mu, 0.0);
+            for (int r=0; r<propensities.length; r++) {
+                Reaction react = reactions.get(r);
+                propensities[r] = react.getPropensity(y);
+                fast[r] = isFast(hws, react, particleState);
+
+                if (fast[r]) {
+                    haveFast = true;
+                    for (int i=0; i<react.deltaIndices.length; i++)
+                        mu[react.deltaIndices[i]] += react.deltaValues[i]*propensities[r];
+                } else {
+                    a0slow += propensities[r];
+                }
+            }
+
+            if (!haveFast && !(a0slow > 0.0))
+                break;
+
+            // Choose step size
+            double dt = Math.min(endTime - t, maxStep);
+            if (haveFast) {
+                for (int i=0; i<y.length; i++) {
+                    if (mu[i] != 0.0)
+                        dt = Math.min(dt, epsilon*Math.max(y[i], 1.0)/Math.abs(mu[i]));
+                }
+            }
+
+            boolean slowFires = false;
+            if (a0slow > 0.0 && slowIntegral + a0slow*dt >= slowThreshold) {
+                dt = (slowThreshold - slowIntegral)/a0slow;
+                slowFires = true;
+            }
+
+            // Integrate fast reactions
+            if (haveFast) {
+                for (int r=0; r<propensities.length; r++) {
+                    if (!fast[r])
+                        continue;
+
+                    double firings = propensities[r]*dt;
+                    if (fastMethod == FastMethod.LANGEVIN)
+                        firings += Math.sqrt(firings)*rng.nextGaussian();
+
+                    Reaction react = reactions.get(r);
+                    for (int i=0; i<react.deltaIndices.length; i++)
+                        y[react.deltaIndices[i]] += react.deltaValues[i]*firings;
+
+                    hws.fastFirings[r] += firings;
+                }
+
+                for (int i=0; i<y.length; i++)
+                    y[i] = Math.max(y[i], 0.0);
+            }
+
+            t += dt;
+            slowIntegral += a0slow*dt;
+
+            if (haveFast)
+                logConditionalP += reportFastFirings(hws, particleState, t);
+
+            // Fire slow reaction
+            if (slowFires) {
+                Reaction react = reactions.get(chooseSlow(hws, a0slow));
+                for (int i=0; i<react.deltaIndices.length; i++)
+                    y[react.deltaIndices[i]] += react.deltaValues[i];
+
+                roundState(y, counts);
+                logConditionalP += reactionFired(ws, particleState, react, 1, t);
+
+                slowIntegral = 0.0;
+                slowThreshold = rng.nextExponential(1.0);
+            }
+        }
+
+        roundState(y, counts);
+
+        return logConditionalP;
+    }
+
+    /**
+     * Report the whole number of accumulated fast firings of each
+     * reaction to reactionFired(), retaining the fractional remainder.
+     *
+     * @param hws workspace
+     * @param particleState particle state, updated to the current
+     *                      real-valued populations if anything is reported
+     * @param t current time
+     * @return log probability that the reported firings are consistent
+     * with the tree
+     */
+    private double reportFastFirings(HybridWorkspace hws,
+        ParticleState particleState, double t) {
+        double logP = 0.0;
+        boolean stateUpdated = false;
+
+        for (int r=0; r<hws.fastFirings.length; r++) {
+            if (!(hws.fastFirings[r] >= 1.0))
+                continue;
+
+            long multiplicity = (long)hws.fastFirings[r];
+            hws.fastFirings[r] -= multiplicity;
+
+            if (!stateUpdated) {
+                roundState(hws.y, particleState.counts);
+                stateUpdated = true;
+            }
+
+            logP += reactionFired(hws, particleState,
+                hws.model.getReactions().get(r), multiplicity, t);
+        }
+
+        return logP;
+    }
+
+    /**
+     * Determine whether a reaction may currently be treated as fast.
+     *
+     * @param hws workspace
+     * @param react reaction
+     * @param particleState particle state
+     * @return true if reaction is fast
+     */
+    private boolean isFast(HybridWorkspace hws, Reaction react,
+        ParticleState particleState) {
+        if (react.deltaIndices.length == 0)
+            return false;
+
+        for (int type : react.reactantIndices) {
+            if (!isFastType(hws, type, particleState))
+                return false;
+        }
+
+        for (int type : react.deltaIndices) {
+            if (!isFastType(hws, type, particleState))
+                return false;
+        }
+
+        return true;
+    }
+
+    private boolean isFastType(HybridWorkspace hws, int type,
+        ParticleState particleState) {
+        return hws.y[type] >= fastThreshold
+            && particleState.lineages.getCount(type) == 0;
+    }
+
+    /**
+     * Choose a slow reaction with probability proportional to its
+     * propensity.
+     *
+     * @param hws workspace
+     * @param a0slow total slow propensity
+     * @return index of chosen reaction
+     */
+    private int chooseSlow(HybridWorkspace hws, double a0slow) {
+        double u = hws.rng.nextDouble()*a0slow;
+
+        int choice = -1;
+        for (int r=0; r<hws.propensities.length; r++) {
+            if (!hws.fast[r] && hws.propensities[r] > 0.0) {
+                choice = r;
+                u -= hws.propensities[r];
+                if (u<0)
+                    break;
+            }
+        }
+
+        return choice;
+    }
+
+    /**
+     * Copy real-valued populations back into the integer state vector.
+     *
+     * @param y real-valued population sizes
+     * @param counts integer population sizes
+     */
+    private void roundState(double[] y, long[] counts) {
+        for (int i=0; i<y.length; i++)
+            counts[i] = Math.round(y[i]);
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package packagex;
+
+/**
+ * Binary min-heap over a fixed set of integer indices, each associated
+ * with a real-valued key.  Supports O(1) retrieval of the index with the
+ * smallest key and O(log n) key updates, as required by the next reaction
+ * method of Gibson and Bruck (2000).
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class IndexedPriorityQueue {
+
+    double[] keys;
+    int[] heap, heapPos;
+
+    public IndexedPriorityQueue(int n) {
+        keys = new double[n];
+        heap = new int[n];
+        heapPos = new int[n];
+    }
+
+    /**
+     * Replace all keys and rebuild the heap in O(n).
+     *
+     * @param newKeys array of keys indexed by element
+     */
+    public void reset(double[] newKeys) {
+        System.arraycopy(newKeys, 0, keys, 0, keys.length);
+
+        for (int i=0; i<heap.length; i++) {
+            heap[i] = i;
+            heapPos[i] = i;
+        }
+
+        for (int i=heap.length/2-1; i>=0; i--)
+            siftDown(i);
+    }
+
+    /**
+     * @return element with the smallest key.
+     */
+    public int getMin() {
+        return heap[0];
+    }
+
+    /**
+     * @return smallest key.
+     */
+    public double getMinKey() {
+        return keys[heap[0]];
+    }
+
+    /**
+     * @param i element
+     * @return key currently associated with element i.
+     */
+    public double getKey(int i) {
+        return keys[i];
+    }
+
+    /**
+     * Change the key associated with an element.
+     *
+     * @param i element
+     * @param key new key
+     */
+    public void update(int i, double key) {
+        double oldKey = keys[i];
+        keys[i] = key;
+
+        if (key < oldKey)
+            siftUp(heapPos[i]);
+        else
+            siftDown(heapPos[i]);
+    }
+
+    private void siftUp(int pos) {
+        int elem = heap[pos];
+        while (pos > 0) {
+            int parentPos = (pos-1)/2;
+            int parent = heap[parentPos];
+            if (keys[parent] <= keys[elem])
+                break;
+
+            heap[pos] = parent;
+            heapPos[parent] = pos;
+            pos = parentPos;
+        }
+
+        heap[pos] = elem;
+        heapPos[elem] = pos;
+    }
+
+    private void siftDown(int pos) {
+        int elem = heap[pos];
+        while (true) {
+            int childPos = 2*pos + 1;
+            if (childPos >= heap.length)
+                break;
+
+            if (childPos+1 < heap.length
+                && keys[heap[childPos+1]] < keys[heap[childPos]])
+                childPos += 1;
+
+            int child = heap[childPos];
+            if (keys[elem] <= keys[child])
+                break;
+
+            heap[pos] = child;
+            heapPos[child] = pos;
+            pos = childPos;
+        }
+
+        heap[pos] = elem;
+        heapPos[elem] = pos;
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package packagex;
+
+/**
+ * Compact association between extant tree lineages and the types of the
+ * individuals carrying them.  Lineages are identified by the numbers of
+ * the tree nodes they lead to, and are stored contiguously in a single
+ * array grouped by type index, so that the lineages of a given type can
+ * be counted and sampled from in O(1).  Adding or removing a lineage costs
+ * O(T) in the number of types, and copying costs O(L + T) in the number
+ * of extant lineages.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class LineageIndex {
+
+    // Node numbers of extant lineages, with those of type t occupying
+    // positions typeStart[t] to typeStart[t+1]-1.
+    final int[] lineages;
+    final int[] typeStart;
+
+    // Position and type of each node's lineage.  Entries for nodes
+    // without an extant lineage are stale, and membership is determined
+    // by checking lineages[nodePos[node]] == node.
+    final int[] nodePos, nodeType;
+
+    final int nTypes;
+
+    /**
+     * Create an empty index.
+     *
+     * @param nTypes number of types in the model
+     * @param nNodes number of nodes in the tree
+     */
+    public LineageIndex(int nTypes, int nNodes) {
+        this.nTypes = nTypes;
+        lineages = new int[nNodes];
+        typeStart = new int[nTypes+1];
+        nodePos = new int[nNodes];
+        nodeType = new int[nNodes];
+    }
+
+    /**
+     * @return total number of extant lineages.
+     */
+    public int getTotalCount() {
+        return typeStart[nTypes];
+    }
+
+    /**
+     * @param type type index
+     * @return number of lineages carried by individuals of the given type.
+     */
+    public int getCount(int type) {
+        return typeStart[type+1] - typeStart[type];
+    }
+
+    /**
+     * @param type type index
+     * @param i index of lineage within those of the given type
+     * @return node number of the i'th lineage of the given type.
+     */
+    public int get(int type, int i) {
+        return lineages[typeStart[type] + i];
+    }
+
+    /**
+     * Choose a lineage of the given type uniformly at random.
+     *
+     * @param type type index
+     * @param rng random number stream
+     * @return node number of chosen lineage
+     */
+    public int choose(int type, RandomStream rng) {
+        return get(type, rng.nextInt(getCount(type)));
+    }
+
+    /**
+     * @param node node number
+     * @return true if the index contains a lineage leading to node.
+     */
+    public boolean contains(int node) {
+        int pos = nodePos[node];
+        return pos < typeStart[nTypes] && lineages[pos] == node;
+    }
+
+    /**
+     * @param node node number of an extant lineage
+     * @return type index of individual carrying the lineage.
+     */
+    public int getType(int node) {
+        return nodeType[node];
+    }
+
+    private void place(int node, int pos) {
+        lineages[pos] = node;
+        nodePos[node] = pos;
+    }
+
+    /**
+     * Add a lineage carried by an individual of the given type.
+     *
+     * @param type type index
+     * @param node node number of lineage
+     */
+    public void add(int type, int node) {
+
+        // Shift each later group one position to the right by moving its
+        // first element to the free position following it.
+        int hole = typeStart[nTypes];
+        typeStart[nTypes] += 1;
+        for (int u=nTypes-1; u>type; u--) {
+            int first = typeStart[u];
+            if (first != hole)
+                place(lineages[first], hole);
+
+            hole = first;
+            typeStart[u] += 1;
+        }
+
+        place(node, hole);
+        nodeType[node] = type;
+    }
+
+    /**
+     * Remove a lineage from the index.
+     *
+     * @param node node number of an extant lineage
+     */
+    public void remove(int node) {
+        int type = nodeType[node];
+
+        // Fill the vacated position with the last lineage of the same
+        // type, then shift each later group one position to the left by
+        // moving its last element to the free position preceding it.
+        int hole = typeStart[type+1] - 1;
+        if (nodePos[node] != hole)
+            place(lineages[hole], nodePos[node]);
+
+        for (int u=type+1; u<nTypes; u++) {
+            int end = typeStart[u+1];
+            typeStart[u] -= 1;
+            if (end-1 != hole)
+                place(lineages[end-1], hole);
+
+            hole = end-1;
+        }
+        typeStart[nTypes] -= 1;
+    }
+
+    /**
+     * Change the type of the individual carrying an extant lineage.
+     *
+     * @param node node number of lineage
+     * @param newType new type index
+     */
+    public void setType(int node, int newType) {
+        if (nodeType[node] == newType)
+            return;
+
+        remove(node);
+        add(newType, node);
+    }
+
+    /**
+     * Remove all lineages.
+     */
+    public void clear() {
+        for (int t=0; t<=nTypes; t++)
+            typeStart[t] = 0;
+    }
+
+    /**
+     * Determine whether other holds the same lineages, carried by
+     * individuals of the same types, as this index.  The order of the
+     * lineages within each type is ignored.
+     *
+     * @param other index to compare, which must have the same dimensions
+     * @return true if the indices are equivalent
+     */
+    public boolean isEquivalent(LineageIndex other) {
+        for (int t=0; t<=nTypes; t++) {
+            if (typeStart[t] != other.typeStart[t])
+                return false;
+        }
+
+        for (int pos=0; pos<typeStart[nTypes]; pos++) {
+            int node = lineages[pos];
+            if (!other.contains(node) || other.nodeType[node] != nodeType[node])
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Make this index a copy of other, which must have the same
+     * dimensions.
+     *
+     * @param other index to copy
+     */
+    public void assignFrom(LineageIndex other) {
+        int total = other.typeStart[nTypes];
+        System.arraycopy(other.lineages, 0, lineages, 0, total);
+        System.arraycopy(other.typeStart, 0, typeStart, 0, nTypes+1);
+
+        for (int t=0; t<nTypes; t++) {
+            for (int pos=typeStart[t]; pos<typeStart[t+1]; pos++) {
+                nodePos[lineages[pos]] = pos;
+                nodeType[lineages[pos]] = t;
+            }
+        }
+    }
+}
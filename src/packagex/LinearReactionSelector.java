@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package packagex;
+
+/**
+ * Reaction selector which stores propensities in a flat array and
+ * chooses reactions by linear search.  Both selection and total
+ * maintenance are O(R), but with a very small constant.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class LinearReactionSelector extends ReactionSelector {
+
+    /**
+     * Number of updates after which the total propensity is recomputed
+     * from scratch to limit round-off drift.
+     */
+    public static int RESUM_INTERVAL = 1000;
+
+    double[] propensities;
+    double total;
+    int updatesSinceResum;
+
+    public LinearReactionSelector(int nReactions) {
+        propensities = new double[nReactions];
+    }
+
+    @Override
+    public void reset(double[] newPropensities) {
+        System.arraycopy(newPropensities, 0, propensities, 0,
+            propensities.length);
+        resum();
+    }
+
+    @Override
+    public void update(int r, double propensity) {
+        total += propensity - propensities[r];
+        propensities[r] = propensity;
+
+        updatesSinceResum += 1;
+        if (updatesSinceResum >= RESUM_INTERVAL)
+            resum();
+    }
+
+    private void resum() {
+        total = 0.0;
+        for (double prop : propensities)
+            total += prop;
+
+        updatesSinceResum = 0;
+    }
+
+    @Override
+    public double getTotal() {
+        return total;
+    }
+
+    @Override
+    public int select(RandomStream rng) {
+        double u = rng.nextDouble()*total;
+
+        // Falls back to the last reaction with a non-zero propensity
+        // should round-off leave u slightly beyond the true sum.
+        int choice = -1;
+        for (int r=0; r<propensities.length; r++) {
+            if (propensities[r] > 0.0) {
+                choice = r;
+                u -= propensities[r];
+                if (u<0)
+                    break;
+            }
+        }
+
+        if (choice < 0)
+            throw new IllegalStateException("Reaction-choosing loop fell through!");
+
+        return choice;
+    }
+}
@@ -19,12 +19,11 @@ package packagex;
 import beast.core.BEASTObject;
 import beast.core.Input;
 import beast.core.Input.Validate;
+import beast.core.parameter.IntegerParameter;
 import beast.core.parameter.RealParameter;
 import beast.evolution.tree.Node;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 /**
  * A model, involving individual types and reactions between those types.
@@ -49,17 +48,118 @@ public class Model extends BEASTObject {
     public Input<Type> originTypeInput = new Input<>("originType",
             "Type of ancestral lineage at origin.", Validate.REQUIRED);
 
-    Map<Reaction, Double> reactionPropensities = new HashMap<>();
-    double totalReactionPropensity;
+    public Input<ReactionSelector.Method> reactionSelectionInput = new Input<>(
+        "reactionSelection",
+        "Method used to choose reactions during simulation: LINEAR, "
+            + "SUM_TREE or COMPOSITION_REJECTION. (Default SUM_TREE.)",
+        ReactionSelector.Method.SUM_TREE, ReactionSelector.Method.values());
+
+    List<Type> types;
+    List<Reaction> reactions;
+
+    // Reaction dependency graph: reactionDependents[r] lists the indices
+    // of reactions whose propensities may change when reaction r fires.
+    int[][] reactionDependents;
+
+    // Incremented each time the model is initialised, allowing objects
+    // caching compiled reactions to detect that these have been rebuilt.
+    int initCount;
 
     @Override
-    public void initAndValidate() throws Exception { }
+    public void initAndValidate() throws Exception {
+        initCount += 1;
+
+        // Assign each type a dense index into the state vector.  Types
+        // mentioned only by reactions or initial population sizes are
+        // appended after those listed explicitly.
+
+        types = new ArrayList<>(typesInput.get());
+
+        for (Reaction react : reactionsInput.get()) {
+            for (Type type : react.reactantsInput.get())
+                addType(type);
+            for (Type type : react.productsInput.get())
+                addType(type);
+        }
+
+        for (PopulationSize popSize : initialPopSizesInput.get())
+            addType(popSize.getType());
+
+        addType(getOriginType());
+
+        for (int idx=0; idx<types.size(); idx++)
+            types.get(idx).index = idx;
+
+        reactions = reactionsInput.get();
+        for (int idx=0; idx<reactions.size(); idx++) {
+            reactions.get(idx).index = idx;
+            reactions.get(idx).compile();
+        }
+
+        // Build reaction dependency graph
+
+        reactionDependents = new int[reactions.size()][];
+        List<Integer> dependents = new ArrayList<>();
+        for (Reaction react : reactions) {
+            dependents.clear();
+            for (Reaction other : reactions) {
+                if (other.dependsOn(react))
+                    dependents.add(other.index);
+            }
+
+            reactionDependents[react.index] = new int[dependents.size()];
+            for (int i=0; i<dependents.size(); i++)
+                reactionDependents[react.index][i] = dependents.get(i);
+        }
+    }
+
+    private void addType(Type type) {
+        if (!types.contains(type))
+            types.add(type);
+    }
+
+    /**
+     * @return number of times the model has been initialised.
+     */
+    public int getInitCount() {
+        return initCount;
+    }
+
+    /**
+     * @return list of types in the order of their state indices.
+     */
+    public List<Type> getTypes() {
+        return types;
+    }
+
+    /**
+     * @return number of distinct types in the model.
+     */
+    public int getTypeCount() {
+        return types.size();
+    }
+
+    /**
+     * @return list of reactions in the order of their indices.
+     */
+    public List<Reaction> getReactions() {
+        return reactions;
+    }
+
+    /**
+     * @param react reaction
+     * @return indices of reactions whose propensities may change when
+     * react fires.
+     */
+    public int[] getDependents(Reaction react) {
+        return reactionDependents[react.index];
+    }
 
     /**
      * @return a copy of the initial system state.
      */
     public SystemState getInitialState() {
-        SystemState initialState = new SystemState();
+        SystemState initialState = new SystemState(types.size());
 
         for (PopulationSize popSize : initialPopSizesInput.get())
             initialState.put(popSize.getType(), popSize.getSize());
@@ -75,39 +175,102 @@ public class Model extends BEASTObject {
     }
 
     /**
-     * Calculate reaction propensities under given state.
-     * 
-     * @param state system state
+     * @return number of values reported by getParameterValues().
      */
-    public void calculatePropensities(SystemState state) {
-        
-        reactionPropensities.clear();
-        totalReactionPropensity = 0.0;
+    public int getParameterCount() {
+        return 1 + reactions.size() + initialPopSizesInput.get().size();
+    }
 
-        for (Reaction react : reactionsInput.get()) {
-            double thisProp = react.getPropensity(state);
-            reactionPropensities.put(react, thisProp);
-            totalReactionPropensity += thisProp;
-        }
+    /**
+     * Retrieve the current values of all model parameters (origin time,
+     * reaction rates and initial population sizes), allowing callers to
+     * detect whether the model has changed since a previous evaluation.
+     *
+     * @param values array of length getParameterCount() to fill
+     */
+    public void getParameterValues(double[] values) {
+        int i = 0;
+        values[i++] = originInput.get().getValue();
+
+        for (Reaction react : reactions)
+            values[i++] = react.hasRate() ? react.rateInput.get().getValue() : 0.0;
+
+        for (PopulationSize popSize : initialPopSizesInput.get())
+            values[i++] = popSize.getSize();
     }
 
     /**
-     * Retrieve previously computed reaction propensities of a given kind.
-     * 
-     * @return map from reactions to propensities
+     * Set all model parameters from values in the order reported by
+     * getParameterValues().  Values for reactions without rates are
+     * ignored.
+     *
+     * @param values array of length getParameterCount()
      */
-    public Map<Reaction, Double> getPropensities() {
-        return reactionPropensities;
+    public void setParameterValues(double[] values) {
+        int i = 0;
+        originInput.get().setValue(0, values[i++]);
+
+        for (Reaction react : reactions) {
+            double value = values[i++];
+            if (react.hasRate())
+                react.rateInput.get().setValue(0, value);
+        }
+
+        for (PopulationSize popSize : initialPopSizesInput.get())
+            popSize.popSizeInput.get().setValue(0, (int)Math.round(values[i++]));
     }
 
     /**
-     * Retrieve total of previously computed reaction propensities of a
-     * given kind.
-     * 
-     * @return total propensity for reactions of this kind
+     * Create a copy of this model holding its own parameters, initialised
+     * to the current parameter values.  Types are shared with this model
+     * (the copy assigns them identical indices), while reactions and
+     * initial population sizes are duplicated.  Allows filters evaluated
+     * concurrently to use different parameter values.  The copy is not
+     * connected to any state nodes.
+     *
+     * @return independent copy of model
+     * @throws Exception
      */
-    public double getTotalPropensity() {
-        return totalReactionPropensity;
+    public Model copy() throws Exception {
+        Model copy = new Model();
+
+        for (Type type : typesInput.get())
+            copy.typesInput.setValue(type, copy);
+
+        for (Reaction react : reactions) {
+            Reaction reactCopy = new Reaction();
+            for (Type type : react.reactantsInput.get())
+                reactCopy.reactantsInput.setValue(type, reactCopy);
+            for (Type type : react.productsInput.get())
+                reactCopy.productsInput.setValue(type, reactCopy);
+            for (Integer idx : react.p2rMapInput.get())
+                reactCopy.p2rMapInput.setValue(idx, reactCopy);
+            if (react.hasRate())
+                reactCopy.rateInput.setValue(new RealParameter(
+                    new Double[] {react.rateInput.get().getValue()}), reactCopy);
+            reactCopy.setID(react.getID());
+            reactCopy.initAndValidate();
+
+            copy.reactionsInput.setValue(reactCopy, copy);
+        }
+
+        for (PopulationSize popSize : initialPopSizesInput.get()) {
+            PopulationSize popSizeCopy = new PopulationSize();
+            popSizeCopy.popTypeInput.setValue(popSize.getType(), popSizeCopy);
+            popSizeCopy.popSizeInput.setValue(new IntegerParameter(
+                new Integer[] {popSize.getSize()}), popSizeCopy);
+            popSizeCopy.initAndValidate();
+
+            copy.initialPopSizesInput.setValue(popSizeCopy, copy);
+        }
+
+        copy.originInput.setValue(new RealParameter(
+            new Double[] {originInput.get().getValue()}), copy);
+        copy.originTypeInput.setValue(getOriginType(), copy);
+        copy.reactionSelectionInput.setValue(reactionSelectionInput.get(), copy);
+        copy.initAndValidate();
+
+        return copy;
     }
 
     /**
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package packagex;
+
+import java.util.List;
+
+/**
+ * Propagates particles using the next reaction method of Gibson and Bruck
+ * (2000).  Each reaction carries a putative absolute firing time, kept in
+ * an indexed priority queue.  After a reaction fires only it receives a
+ * fresh exponential variate; the firing times of its dependents are
+ * rescaled to their new propensities, so each step consumes a single
+ * random number and costs O(D log R) for D dependent reactions.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class NextReactionPropagator extends ParticlePropagator {
+
+    /**
+     * Workspace holding the putative firing time queue.
+     */
+    public static class QueueWorkspace extends Workspace {
+        final double[] propensities, firingTimes;
+        final IndexedPriorityQueue queue;
+
+        public QueueWorkspace(Model model) {
+            super(model);
+
+            int nReactions = model.getReactions().size();
+            propensities = new double[nReactions];
+            firingTimes = new double[nReactions];
+            queue = new IndexedPriorityQueue(nReactions);
+        }
+    }
+
+    @Override
+    public Workspace createWorkspace(Model model) {
+        return new QueueWorkspace(model);
+    }
+
+    @Override
+    public double propagate(Workspace ws, ParticleState particleState,
+        double startTime, double endTime) {
+        double logConditionalP = 0.0;
+
+        QueueWorkspace qws = (QueueWorkspace)ws;
+        double[] propensities = qws.propensities;
+        IndexedPriorityQueue queue = qws.queue;
+        RandomStream rng = ws.rng;
+
+        List<Reaction> reactions = ws.model.getReactions();
+        int nReactions = reactions.size();
+        if (nReactions == 0)
+            return logConditionalP;
+
+        // Draw initial putative firing times
+        for (int r=0; r<nReactions; r++) {
+            propensities[r] = reactions.get(r).getPropensity(particleState);
+            qws.firingTimes[r] = putativeTime(rng, startTime, propensities[r]);
+        }
+        queue.reset(qws.firingTimes);
+
+        while (true) {
+
+            double t = queue.getMinKey();
+
+            // Stop if t>endTime
+            if (t>endTime)
+                break;
+
+            Reaction react = reactions.get(queue.getMin());
+
+            // Implement state change
+            react.incrementState(particleState);
+
+            // Update propensities and firing times of dependent reactions
+            for (int r : ws.model.getDependents(react)) {
+                if (r == react.getIndex())
+                    continue;
+
+                double oldProp = propensities[r];
+                double newProp = reactions.get(r).getPropensity(particleState);
+                propensities[r] = newProp;
+
+                if (newProp == oldProp)
+                    continue;
+
+                double newTime;
+                if (oldProp > 0.0 && newProp > 0.0)
+                    newTime = t + (oldProp/newProp)*(queue.getKey(r) - t);
+                else
+                    newTime = putativeTime(rng, t, newProp);
+
+                queue.update(r, newTime);
+            }
+
+            // The reaction which fired always receives a fresh time
+            propensities[react.getIndex()] = react.getPropensity(particleState);
+            queue.update(react.getIndex(),
+                putativeTime(rng, t, propensities[react.getIndex()]));
+
+            logConditionalP += reactionFired(ws, particleState, react, 1, t);
+        }
+
+        return logConditionalP;
+    }
+
+    /**
+     * Draw an absolute firing time for a reaction with the given
+     * propensity.
+     *
+     * @param rng random number stream
+     * @param t current time
+     * @param propensity reaction propensity
+     * @return putative firing time
+     */
+    private double putativeTime(RandomStream rng, double t, double propensity) {
+        if (propensity > 0.0)
+            return t + rng.nextExponential(propensity);
+        else
+            return Double.POSITIVE_INFINITY;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package packagex;
+
+import beast.core.Input;
+import beast.core.Input.Validate;
+import beast.core.Operator;
+
+/**
+ * Gibbs move for the population trajectory underlying a tree.  A new
+ * reference trajectory is drawn from its full conditional distribution
+ * by running conditional SMC (with ancestor sampling, if enabled) in the
+ * given TreeDensity, and is always accepted.  Combined with ordinary
+ * moves on the model parameters, which then see the joint density of
+ * tree and trajectory, this yields a particle Gibbs sampler.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class ParticleGibbsOperator extends Operator {
+
+    public Input<TreeDensity> treeDensityInput = new Input<>("treeDensity",
+        "Tree density used to draw new trajectories.", Validate.REQUIRED);
+
+    public Input<ReferenceTrajectory> referenceTrajectoryInput = new Input<>(
+        "referenceTrajectory",
+        "Reference trajectory of the tree density, updated by this operator.",
+        Validate.REQUIRED);
+
+    TreeDensity treeDensity;
+
+    @Override
+    public void initAndValidate() throws Exception {
+        treeDensity = treeDensityInput.get();
+
+        if (treeDensity.referenceTrajectoryInput.get()
+            != referenceTrajectoryInput.get())
+            throw new IllegalArgumentException("Reference trajectory must be "
+                + "that of the tree density.");
+
+        referenceTrajectoryInput.get().checkOperators();
+    }
+
+    @Override
+    public double proposal() {
+        try {
+            treeDensity.sampleReferenceTrajectory(this);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+
+        return Double.POSITIVE_INFINITY;
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package packagex;
+
+import java.util.Arrays;
+
+/**
+ * In-memory record of the events simulated for each particle over a run
+ * of the particle filter, together with the particles' ancestry, from
+ * which the complete trajectory of any final particle can be traced.
+ * Used by TreeDensity to draw reference trajectories for conditional
+ * SMC.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+class ParticleHistory {
+
+    int nParticles, nIntervals;
+
+    // Events of particle p in interval k occupy the range
+    // [eventStarts[k*(nParticles+1)+p], eventStarts[k*(nParticles+1)+p+1]).
+    int[] eventStarts = new int[0];
+
+    // Ancestors of particles following resampling at the end of interval k
+    // are ancestors[k*nParticles + p], provided resampled[k] is true.
+    int[] ancestors = new int[0];
+    boolean[] resampled = new boolean[0];
+
+    int[] reactions = new int[1024];
+    double[] times = new double[1024];
+    long[] multiplicities = new long[1024];
+    int nEvents;
+
+    // Scratch space used when tracing trajectories.
+    int[] segmentParticles = new int[0];
+    int[] traceReactions = new int[0];
+    long[] traceMultiplicities = new long[0];
+    double[] traceTimes = new double[0];
+
+    /**
+     * Discard the recorded history.
+     *
+     * @param newNParticles number of particles in the next run
+     */
+    void clear(int newNParticles) {
+        nParticles = newNParticles;
+        nIntervals = 0;
+        nEvents = 0;
+    }
+
+    /**
+     * Record the events of an interval.
+     *
+     * @param buffers per-thread event buffers, in particle order
+     * @param intervalAncestors ancestors of particles following resampling,
+     *                          or null if no resampling took place
+     */
+    void addInterval(TrajectoryRecorder.Buffer[] buffers,
+        int[] intervalAncestors) {
+
+        if ((nIntervals+1)*(nParticles+1) > eventStarts.length)
+            eventStarts = Arrays.copyOf(eventStarts, 2*(nIntervals+1)*(nParticles+1));
+        if ((nIntervals+1)*nParticles > ancestors.length)
+            ancestors = Arrays.copyOf(ancestors, 2*(nIntervals+1)*nParticles);
+        if (nIntervals+1 > resampled.length)
+            resampled = Arrays.copyOf(resampled, 2*(nIntervals+1));
+
+        int offset = nIntervals*(nParticles+1);
+        int p = 0;
+        for (TrajectoryRecorder.Buffer buf : buffers) {
+            int start = 0;
+            for (int i=0; i<buf.nParticles; i++) {
+                eventStarts[offset + p++] = nEvents + start;
+                start = buf.particleEnds[i];
+            }
+
+            if (nEvents + buf.size > reactions.length) {
+                int capacity = Math.max(2*reactions.length, nEvents + buf.size);
+                reactions = Arrays.copyOf(reactions, capacity);
+                times = Arrays.copyOf(times, capacity);
+                multiplicities = Arrays.copyOf(multiplicities, capacity);
+            }
+
+            System.arraycopy(buf.reactions, 0, reactions, nEvents, buf.size);
+            System.arraycopy(buf.times, 0, times, nEvents, buf.size);
+            System.arraycopy(buf.multiplicities, 0, multiplicities, nEvents, buf.size);
+            nEvents += buf.size;
+        }
+        eventStarts[offset + nParticles] = nEvents;
+
+        resampled[nIntervals] = intervalAncestors != null;
+        if (intervalAncestors != null)
+            System.arraycopy(intervalAncestors, 0, ancestors,
+                nIntervals*nParticles, nParticles);
+
+        nIntervals += 1;
+    }
+
+    /**
+     * Trace the complete trajectory of a particle present at the end of
+     * the recorded run, following its ancestry back to the origin.
+     *
+     * @param particle index of particle following the final interval
+     *                 (and any resampling at its end)
+     * @param reference trajectory to replace with the traced events
+     */
+    void trace(int particle, ReferenceTrajectory reference) {
+        if (segmentParticles.length < nIntervals)
+            segmentParticles = new int[nIntervals];
+
+        // Identify the particle responsible for each interval, working
+        // backwards from the population following the final interval.
+        int p = particle;
+        int nTraceEvents = 0;
+        for (int k=nIntervals-1; k>=0; k--) {
+            if (resampled[k])
+                p = ancestors[k*nParticles + p];
+
+            segmentParticles[k] = p;
+            nTraceEvents += eventStarts[k*(nParticles+1) + p + 1]
+                - eventStarts[k*(nParticles+1) + p];
+        }
+
+        if (traceReactions.length < nTraceEvents) {
+            traceReactions = new int[nTraceEvents];
+            traceTimes = new double[nTraceEvents];
+            traceMultiplicities = new long[nTraceEvents];
+        }
+
+        int e = 0;
+        for (int k=0; k<nIntervals; k++) {
+            int start = eventStarts[k*(nParticles+1) + segmentParticles[k]];
+            int end = eventStarts[k*(nParticles+1) + segmentParticles[k] + 1];
+            System.arraycopy(reactions, start, traceReactions, e, end-start);
+            System.arraycopy(times, start, traceTimes, e, end-start);
+            System.arraycopy(multiplicities, start, traceMultiplicities, e, end-start);
+            e += end-start;
+        }
+
+        reference.setEvents(nTraceEvents, traceReactions, traceTimes,
+            traceMultiplicities);
+    }
+}
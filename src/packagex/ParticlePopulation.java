@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package packagex;
+
+import beast.core.parameter.RealParameter;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Population sizes and reaction propensities of a group of particles,
+ * stored in contiguous arrays ordered first by type (respectively
+ * reaction) and then by particle.  Evaluating the propensity of a
+ * reaction for every particle in the group is then a unit-stride loop
+ * which the JIT compiler is able to vectorise.
+ *
+ * Particles are identified by their slot in the group.  The count of
+ * type t in slot i is held at counts[t*capacity + i], and the
+ * propensity of reaction r at propensities[r*capacity + i].
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class ParticlePopulation {
+
+    final Model model;
+    final int nTypes, nReactions;
+    final Reaction[] reactions;
+
+    int capacity, size;
+    long[] counts;
+    double[] propensities, totals;
+
+    // Updates to each slot's total since it was last summed from scratch.
+    int[] updatesSinceResum;
+
+    // Rates and reaction dependency graph, read at each full calculation.
+    final double[] rates;
+    int[][] dependents;
+    boolean sparseDependencies;
+
+    public ParticlePopulation(Model model) {
+        this.model = model;
+        nTypes = model.getTypeCount();
+
+        List<Reaction> reactionList = model.getReactions();
+        nReactions = reactionList.size();
+        reactions = reactionList.toArray(new Reaction[nReactions]);
+        rates = new double[nReactions];
+
+        allocate(0);
+    }
+
+    private void allocate(int newCapacity) {
+        capacity = newCapacity;
+        counts = new long[nTypes*capacity];
+        propensities = new double[nReactions*capacity];
+        totals = new double[capacity];
+        updatesSinceResum = new int[capacity];
+    }
+
+    /**
+     * Set the number of particles in the group, discarding the current
+     * contents if the existing storage is too small.
+     *
+     * @param newSize number of particles
+     */
+    public void setSize(int newSize) {
+        if (newSize > capacity)
+            allocate(Math.max(newSize, 2*capacity));
+
+        size = newSize;
+    }
+
+    /**
+     * @return number of particles in the group
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Copy the population sizes of a state into slot i.
+     *
+     * @param i slot
+     * @param state state to copy
+     */
+    public void load(int i, SystemState state) {
+        for (int t=0; t<nTypes; t++)
+            counts[t*capacity + i] = state.counts[t];
+    }
+
+    /**
+     * Copy the population sizes held in slot i into a state.
+     *
+     * @param i slot
+     * @param state state to update
+     */
+    public void store(int i, SystemState state) {
+        for (int t=0; t<nTypes; t++)
+            state.counts[t] = counts[t*capacity + i];
+    }
+
+    /**
+     * @param i slot
+     * @param t type index
+     * @return population size of type t in slot i
+     */
+    public long get(int i, int t) {
+        return counts[t*capacity + i];
+    }
+
+    /**
+     * Exchange the contents (population sizes and propensities) of two
+     * slots.
+     *
+     * @param i first slot
+     * @param j second slot
+     */
+    public void swap(int i, int j) {
+        for (int t=0; t<nTypes; t++) {
+            long tmp = counts[t*capacity + i];
+            counts[t*capacity + i] = counts[t*capacity + j];
+            counts[t*capacity + j] = tmp;
+        }
+
+        for (int r=0; r<nReactions; r++) {
+            double tmp = propensities[r*capacity + i];
+            propensities[r*capacity + i] = propensities[r*capacity + j];
+            propensities[r*capacity + j] = tmp;
+        }
+
+        double tmp = totals[i];
+        totals[i] = totals[j];
+        totals[j] = tmp;
+
+        int tmpUpdates = updatesSinceResum[i];
+        updatesSinceResum[i] = updatesSinceResum[j];
+        updatesSinceResum[j] = tmpUpdates;
+    }
+
+    /**
+     * Calculate the propensities of all reactions for the particles in
+     * the first n slots.
+     *
+     * Since population sizes are non-negative, the product N(N-1)...(N-m+1)
+     * vanishes whenever N is less than the reactant order m, so no
+     * branches are required within the loops over particles.
+     *
+     * @param n number of slots to update
+     */
+    public void calculatePropensities(int n) {
+        Arrays.fill(totals, 0, n, 0.0);
+        Arrays.fill(updatesSinceResum, 0, n, 0);
+
+        dependents = model.reactionDependents;
+        int nDependents = 0;
+        for (int[] reactionDependents : dependents)
+            nDependents += reactionDependents.length;
+        sparseDependencies = 2*nDependents < nReactions*nReactions;
+
+        for (int r=0; r<nReactions; r++) {
+            Reaction react = reactions[r];
+            int offset = r*capacity;
+
+            RealParameter rate = react.rateInput.get();
+            rates[r] = rate != null ? rate.getValue() : 0.0;
+            Arrays.fill(propensities, offset, offset + n, rates[r]);
+
+            for (int k=0; k<react.reactantIndices.length; k++) {
+                int countOffset = react.reactantIndices[k]*capacity;
+                for (int j=0; j<react.reactantOrders[k]; j++) {
+                    for (int i=0; i<n; i++)
+                        propensities[offset + i] *= counts[countOffset + i] - j;
+                }
+            }
+
+            for (int i=0; i<n; i++)
+                totals[i] += propensities[offset + i];
+        }
+    }
+
+    /**
+     * Update the propensities held in slot i following the firing of a
+     * reaction.  Only the propensities of reactions which depend on the
+     * fired reaction are recomputed, using the rates read and the same
+     * arithmetic as the last call to calculatePropensities().  As in
+     * LinearReactionSelector, the total is updated incrementally and
+     * periodically recomputed from scratch to limit round-off drift.
+     *
+     * @param i slot
+     * @param fired reaction which has just fired
+     */
+    public void updatePropensities(int i, Reaction fired) {
+        double total = totals[i];
+
+        for (int r : dependents[fired.index]) {
+            Reaction react = reactions[r];
+
+            double prop = rates[r];
+            for (int k=0; k<react.reactantIndices.length; k++) {
+                long N = counts[react.reactantIndices[k]*capacity + i];
+                for (int j=0; j<react.reactantOrders[k]; j++)
+                    prop *= N - j;
+            }
+
+            total += prop - propensities[r*capacity + i];
+            propensities[r*capacity + i] = prop;
+        }
+
+        updatesSinceResum[i] += 1;
+        if (updatesSinceResum[i] >= LinearReactionSelector.RESUM_INTERVAL) {
+            total = 0.0;
+            for (int r=0; r<nReactions; r++)
+                total += propensities[r*capacity + i];
+            updatesSinceResum[i] = 0;
+        }
+
+        totals[i] = total;
+    }
+
+    /**
+     * @return true if a reaction firing typically changes the propensities
+     * of fewer than half of the reactions, in which case updating these
+     * with updatePropensities() is cheaper than recalculating them all.
+     * (Valid following calculatePropensities().)
+     */
+    public boolean hasSparseDependencies() {
+        return sparseDependencies;
+    }
+
+    /**
+     * @param i slot
+     * @param r reaction index
+     * @return previously computed propensity of reaction r in slot i
+     */
+    public double getPropensity(int i, int r) {
+        return propensities[r*capacity + i];
+    }
+
+    /**
+     * @param i slot
+     * @return previously computed total propensity in slot i
+     */
+    public double getTotal(int i) {
+        return totals[i];
+    }
+
+    /**
+     * Choose a reaction for slot i with probability proportional to its
+     * previously computed propensity.  The total propensity must be
+     * positive.
+     *
+     * @param i slot
+     * @param rng random number stream
+     * @return chosen reaction
+     */
+    public Reaction select(int i, RandomStream rng) {
+        double u = rng.nextDouble()*totals[i];
+
+        // Falls back to the last reaction with a non-zero propensity
+        // should round-off leave u slightly beyond the true sum.
+        int choice = -1;
+        for (int r=0; r<nReactions; r++) {
+            double prop = propensities[r*capacity + i];
+            if (prop > 0.0) {
+                choice = r;
+                u -= prop;
+                if (u<0)
+                    break;
+            }
+        }
+
+        if (choice < 0)
+            throw new IllegalStateException("Reaction-choosing loop fell through!");
+
+        return reactions[choice];
+    }
+
+    /**
+     * Apply a reaction to the population sizes in slot i.
+     *
+     * @param i slot
+     * @param react reaction to apply
+     */
+    public void incrementState(int i, Reaction react) {
+        for (int d=0; d<react.deltaIndices.length; d++)
+            counts[react.deltaIndices[d]*capacity + i] += react.deltaValues[d];
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package packagex;
+
+import beast.core.BEASTObject;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Algorithm for propagating the state of an SMC particle forward in time
+ * between successive tree events.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public abstract class ParticlePropagator extends BEASTObject {
+
+    /**
+     * Working storage used by a single thread while propagating particles.
+     * Propagators requiring additional storage extend this class and
+     * override createWorkspace().
+     */
+    public static class Workspace {
+        public final Model model;
+        public final ReactionPropensities propensities;
+        public final RandomStream rng = new RandomStream(0);
+
+        // Event counters, allocated only when metrics are collected.
+        long[] reactionCounts;
+        long eventCount;
+
+        // Event buffer, present only while trajectories are recorded.
+        TrajectoryRecorder.Buffer trajectory;
+
+        public Workspace(Model model) {
+            this.model = model;
+            propensities = new ReactionPropensities(model);
+        }
+    }
+
+    @Override
+    public void initAndValidate() throws Exception { }
+
+    /**
+     * Create working storage for propagating particles under the given
+     * model.  One workspace is needed per thread.
+     *
+     * @param model model under which to simulate
+     * @return new workspace
+     */
+    public Workspace createWorkspace(Model model) {
+        return new Workspace(model);
+    }
+
+    /**
+     * @return true if the propagator simulates every reaction individually
+     * and exactly, so that the trajectories it produces have a well-defined
+     * density under the model.
+     */
+    public boolean isExact() {
+        return true;
+    }
+
+    /**
+     * Propagate particle over interval.
+     *
+     * @param ws workspace obtained from createWorkspace()
+     * @param particleState state at the start of the interval, updated
+     *                      in place to the state at the end
+     * @param startTime time at the start of the interval
+     * @param endTime time at the end of the interval
+     * @return log conditional probability of the tree over the interval
+     */
+    public abstract double propagate(Workspace ws, ParticleState particleState,
+        double startTime, double endTime);
+
+    /**
+     * Propagate a contiguous range of particles over an interval.  The
+     * default implementation propagates each particle in turn using the
+     * workspace's random stream; propagators able to advance a group of
+     * particles together override this.
+     *
+     * @param ws workspace obtained from createWorkspace()
+     * @param particleStates particle states, each of which must be
+     *                       unique, updated in place
+     * @param from index of first particle
+     * @param to index of last particle plus one
+     * @param streams prepares the given stream for use by particle p
+     * @param startTime time at the start of the interval
+     * @param endTime time at the end of the interval
+     * @param logWeights particle log weights, to which the log conditional
+     *                   probability of the tree over the interval is added
+     */
+    public void propagate(Workspace ws, ParticleState[] particleStates,
+        int from, int to, ObjIntConsumer<RandomStream> streams,
+        double startTime, double endTime, double[] logWeights) {
+
+        for (int p=from; p<to; p++) {
+            streams.accept(ws.rng, p);
+            logWeights[p] += propagate(ws, particleStates[p], startTime,
+                endTime);
+        }
+    }
+
+    /**
+     * Record the effect of a reaction on the tree lineages carried by
+     * the particle.  Called by propagators after each reaction fires.
+     * Approximate propagators may report several firings of the same
+     * reaction at once, in the sense of SystemEvent.getMultiplicity().
+     *
+     * @param ws workspace
+     * @param particleState particle state following the reaction
+     * @param react reaction which fired
+     * @param multiplicity number of times the reaction fired
+     * @param t time of reaction
+     * @return log probability that the reaction is consistent with the tree
+     */
+    protected double reactionFired(Workspace ws, ParticleState particleState,
+        Reaction react, long multiplicity, double t) {
+
+        if (ws.reactionCounts != null) {
+            ws.reactionCounts[react.getIndex()] += multiplicity;
+            ws.eventCount += 1;
+        }
+
+        if (ws.trajectory != null)
+            ws.trajectory.add(react.getIndex(), t, multiplicity);
+
+        return getTreeLogProbability(ws, particleState, react, multiplicity, t);
+    }
+
+    /**
+     * Compute the log probability that a reaction is consistent with
+     * the tree lineages carried by the particle, without recording the
+     * reaction in the workspace metrics or trajectory.
+     *
+     * @param ws workspace
+     * @param particleState particle state following the reaction
+     * @param react reaction which fired
+     * @param multiplicity number of times the reaction fired
+     * @param t time of reaction
+     * @return log probability that the reaction is consistent with the tree
+     */
+    protected double getTreeLogProbability(Workspace ws,
+        ParticleState particleState, Reaction react, long multiplicity,
+        double t) {
+
+        // Randomly associate individuals with reactants.
+
+        // Evaluate probability that reaction affected tree
+
+        return 0.0;
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package packagex;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * System state of a single SMC particle, together with the association
+ * between tree lineages and individual types.
+ *
+ * Particle states are copy-on-write: assigning one particle state from
+ * another merely shares the underlying storage, which is duplicated only
+ * when makeUnique() is called prior to modification.  Storage is drawn
+ * from and returned to a Pool so that it can be reused across
+ * likelihood evaluations.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class ParticleState extends SystemState {
+
+    /**
+     * Reference-counted storage for particle states.
+     */
+    static class Storage {
+        final long[] counts;
+        final LineageIndex lineages;
+        final AtomicInteger refCount = new AtomicInteger(1);
+
+        Storage(int nTypes, int nNodes) {
+            counts = new long[nTypes];
+            lineages = new LineageIndex(nTypes, nNodes);
+        }
+    }
+
+    /**
+     * Thread-safe pool of particle state storage.
+     */
+    public static class Pool {
+        final int nTypes, nNodes;
+        final Deque<Storage> free = new ArrayDeque<>();
+
+        public Pool(int nTypes, int nNodes) {
+            this.nTypes = nTypes;
+            this.nNodes = nNodes;
+        }
+
+        synchronized Storage acquire() {
+            Storage storage = free.poll();
+            if (storage == null)
+                return new Storage(nTypes, nNodes);
+
+            storage.refCount.set(1);
+            return storage;
+        }
+
+        synchronized void release(Storage storage) {
+            storage.lineages.clear();
+            free.push(storage);
+        }
+    }
+
+    /**
+     * Tree lineages carried by individuals in this state, keyed by node
+     * number and type index.
+     */
+    public LineageIndex lineages;
+
+    Storage storage;
+    final Pool pool;
+    final int nTypes, nNodes;
+
+    public ParticleState(Pool pool) {
+        this.pool = pool;
+        nTypes = pool.nTypes;
+        nNodes = pool.nNodes;
+    }
+
+    public ParticleState(int nTypes, int nNodes) {
+        pool = null;
+        this.nTypes = nTypes;
+        this.nNodes = nNodes;
+        setStorage(new Storage(nTypes, nNodes));
+    }
+
+    public ParticleState(SystemState state, int nNodes) {
+        this(state.getTypeCount(), nNodes);
+        System.arraycopy(state.counts, 0, counts, 0, nTypes);
+    }
+
+    private void setStorage(Storage newStorage) {
+        storage = newStorage;
+        if (storage != null) {
+            counts = storage.counts;
+            lineages = storage.lineages;
+        } else {
+            counts = null;
+            lineages = null;
+        }
+    }
+
+    private Storage acquire() {
+        return pool != null ? pool.acquire() : new Storage(nTypes, nNodes);
+    }
+
+    /**
+     * Drop this particle's reference to its storage, returning the storage
+     * to the pool if no other particle refers to it.
+     */
+    public void release() {
+        if (storage != null
+            && storage.refCount.decrementAndGet() == 0 && pool != null)
+            pool.release(storage);
+
+        setStorage(null);
+    }
+
+    /**
+     * @return true if this particle's storage is shared with others.
+     */
+    public boolean isShared() {
+        return storage != null && storage.refCount.get() > 1;
+    }
+
+    /**
+     * Ensure this particle has exclusive use of its storage, copying
+     * shared storage if necessary.  Must be called before the particle
+     * state is modified.
+     */
+    public void makeUnique() {
+        if (storage == null) {
+            setStorage(acquire());
+            return;
+        }
+
+        if (storage.refCount.get() > 1) {
+            Storage copy = acquire();
+            System.arraycopy(storage.counts, 0, copy.counts, 0, nTypes);
+            copy.lineages.assignFrom(storage.lineages);
+
+            release();
+            setStorage(copy);
+        }
+    }
+
+    /**
+     * Make this particle state share the state of other.
+     *
+     * @param other particle state to share
+     */
+    public void assignFrom(ParticleState other) {
+        if (other.storage == storage)
+            return;
+
+        Storage otherStorage = other.storage;
+        otherStorage.refCount.incrementAndGet();
+
+        release();
+        setStorage(otherStorage);
+    }
+
+    /**
+     * Determine whether other has the same population counts and the
+     * same association of lineages with types as this particle.
+     *
+     * @param other particle state to compare
+     * @return true if the states are equivalent
+     */
+    public boolean isEquivalent(ParticleState other) {
+        if (other.storage == storage)
+            return true;
+
+        return Arrays.equals(counts, other.counts)
+            && lineages.isEquivalent(other.lineages);
+    }
+
+    @Override
+    public void assignFrom(SystemState other) {
+        makeUnique();
+        super.assignFrom(other);
+    }
+
+    @Override
+    public int getTypeCount() {
+        return nTypes;
+    }
+}
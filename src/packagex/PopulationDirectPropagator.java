@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package packagex;
+
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Propagates a group of particles together using Gillespie's direct
+ * method.  The population sizes and propensities of the group are held
+ * in a ParticlePopulation.  Propensities are calculated for the whole
+ * group at the start of each interval.  Where the reaction dependency
+ * graph is sparse, only the propensities of reactions depending on each
+ * fired reaction are then recomputed; otherwise the propensities of every
+ * particle still short of the end of the interval are recomputed after
+ * each step in (vectorisable) loops over particles.  Population
+ * sizes are copied back to the particle states once the whole group has
+ * reached the end of the interval, so while the group is propagated the
+ * states passed to reactionFired() carry the particles' lineages but not
+ * their current population sizes.
+ *
+ * Each particle draws from its own random stream exactly as it would
+ * under DirectPropagator, so the two propagators produce the same
+ * trajectories up to round-off.  Reactions are always chosen by linear
+ * search, irrespective of the model's reactionSelection.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class PopulationDirectPropagator extends ParticlePropagator {
+
+    /**
+     * Workspace holding the particle group together with the random
+     * stream and current time of each of its particles.
+     */
+    public static class PopulationWorkspace extends Workspace {
+        final ParticlePopulation population;
+        RandomStream[] streams = new RandomStream[0];
+        int[] slotParticles = new int[0];
+        double[] times = new double[0];
+
+        // Used when propagating a single particle.
+        final RandomStream[] singleStream = { rng };
+        final ParticleState[] singleState = new ParticleState[1];
+        final double[] singleLogWeight = new double[1];
+
+        public PopulationWorkspace(Model model) {
+            super(model);
+            population = new ParticlePopulation(model);
+        }
+
+        /**
+         * Obtain the random stream used by the i'th particle of the next
+         * group propagated using this workspace.
+         *
+         * @param i index of particle within group
+         * @return random stream
+         */
+        public RandomStream getStream(int i) {
+            if (i >= streams.length) {
+                RandomStream[] newStreams = new RandomStream[Math.max(i+1, 2*streams.length)];
+                System.arraycopy(streams, 0, newStreams, 0, streams.length);
+                for (int j=streams.length; j<newStreams.length; j++)
+                    newStreams[j] = new RandomStream(0);
+                streams = newStreams;
+            }
+
+            return streams[i];
+        }
+
+        private void ensureCapacity(int n) {
+            if (slotParticles.length < n) {
+                slotParticles = new int[n];
+                times = new double[n];
+            }
+        }
+    }
+
+    @Override
+    public Workspace createWorkspace(Model model) {
+        return new PopulationWorkspace(model);
+    }
+
+    @Override
+    public double propagate(Workspace ws, ParticleState particleState,
+        double startTime, double endTime) {
+        PopulationWorkspace pws = (PopulationWorkspace)ws;
+
+        pws.singleState[0] = particleState;
+        pws.singleLogWeight[0] = 0.0;
+        propagate(pws, pws.singleState, 0, 1, pws.singleStream,
+            startTime, endTime, pws.singleLogWeight);
+        pws.singleState[0] = null;
+
+        return pws.singleLogWeight[0];
+    }
+
+    @Override
+    public void propagate(Workspace ws, ParticleState[] particleStates,
+        int from, int to, ObjIntConsumer<RandomStream> streams,
+        double startTime, double endTime, double[] logWeights) {
+        PopulationWorkspace pws = (PopulationWorkspace)ws;
+
+        for (int p=from; p<to; p++)
+            streams.accept(pws.getStream(p-from), p);
+
+        propagate(pws, particleStates, from, to, pws.streams,
+            startTime, endTime, logWeights);
+    }
+
+    private void propagate(PopulationWorkspace ws,
+        ParticleState[] particleStates, int from, int to,
+        RandomStream[] streams, double startTime, double endTime,
+        double[] logWeights) {
+
+        int n = to - from;
+        ParticlePopulation population = ws.population;
+        population.setSize(n);
+        ws.ensureCapacity(n);
+
+        int[] slotParticles = ws.slotParticles;
+        double[] times = ws.times;
+        for (int i=0; i<n; i++) {
+            population.load(i, particleStates[from + i]);
+            slotParticles[i] = i;
+            times[i] = startTime;
+        }
+
+        population.calculatePropensities(n);
+        boolean sparse = population.hasSparseDependencies();
+
+        // Particles which have reached the end of the interval are moved
+        // beyond the first nActive slots, so that propensities are only
+        // recomputed for the particles still being propagated.
+        int nActive = n;
+        boolean firstStep = true;
+        while (nActive > 0) {
+            if (!sparse && !firstStep)
+                population.calculatePropensities(nActive);
+            firstStep = false;
+
+            int i = 0;
+            while (i < nActive) {
+                int k = slotParticles[i];
+                RandomStream rng = streams[k];
+
+                // Increment time
+                double total = population.getTotal(i);
+                if (total > 0.0)
+                    times[i] += rng.nextExponential(total);
+                else
+                    times[i] = Double.POSITIVE_INFINITY;
+
+                // Retire particle if t>endTime
+                if (times[i] > endTime) {
+                    nActive -= 1;
+                    population.swap(i, nActive);
+                    slotParticles[i] = slotParticles[nActive];
+                    slotParticles[nActive] = k;
+                    double tmp = times[i];
+                    times[i] = times[nActive];
+                    times[nActive] = tmp;
+                    continue;
+                }
+
+                // Choose reaction
+                Reaction react = population.select(i, rng);
+
+                // Implement state change
+                population.incrementState(i, react);
+                if (sparse)
+                    population.updatePropensities(i, react);
+
+                logWeights[from + k] += reactionFired(ws,
+                    particleStates[from + k], react, 1, times[i]);
+
+                i += 1;
+            }
+        }
+
+        for (int i=0; i<n; i++)
+            population.store(i, particleStates[from + slotParticles[i]]);
+    }
+}
@@ -0,0 +1,499 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package packagex;
+
+/**
+ * Fast, unsynchronised pseudorandom number stream based on the xoshiro256**
+ * generator of Blackman and Vigna (2018), seeded using the SplitMix64
+ * generator of Steele, Lea and Flood (2014).  Streams are cheap to reseed,
+ * allowing each particle to draw from its own stream derived from a
+ * master seed, so that results do not depend on how particles are
+ * distributed among threads.
+ *
+ * Exponential and normal variates are drawn using the ziggurat method of
+ * Marsaglia and Tsang (2000), and binomial and Poisson variates by
+ * inversion or transformed rejection.  None of the samplers allocate.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class RandomStream {
+
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    // Largest double below 1
+    private static final double MAX_UNIFORM = 1.0 - 0x1.0p-53;
+
+    // log(k!) for k < 10, used by the Poisson sampler
+    private static final double[] LOG_FACTORIAL = {
+        0.0, 0.0, Math.log(2), Math.log(6), Math.log(24), Math.log(120),
+        Math.log(720), Math.log(5040), Math.log(40320), Math.log(362880)
+    };
+
+    // Ziggurat tables for the standard exponential (256 layers) and
+    // standard normal (128 layers) distributions, following Marsaglia and
+    // Tsang (2000).  Layer boundaries k are scaled to 32 bit integers.
+    private static final double EXP_R = 7.697117470131487;
+    private static final double NORM_R = 3.442619855899;
+    private static final long[] KE = new long[256], KN = new long[128];
+    private static final double[] WE = new double[256], FE = new double[256];
+    private static final double[] WN = new double[128], FN = new double[128];
+
+    static {
+        final double m1 = 2147483648.0, m2 = 4294967296.0;
+
+        double de = EXP_R, te = de, ve = 3.949659822581572e-3;
+        double q = ve/Math.exp(-de);
+        KE[0] = (long)((de/q)*m2);
+        KE[1] = 0;
+        WE[0] = q/m2;
+        WE[255] = de/m2;
+        FE[0] = 1.0;
+        FE[255] = Math.exp(-de);
+        for (int i=254; i>=1; i--) {
+            de = -Math.log(ve/de + Math.exp(-de));
+            KE[i+1] = (long)((de/te)*m2);
+            te = de;
+            FE[i] = Math.exp(-de);
+            WE[i] = de/m2;
+        }
+
+        double dn = NORM_R, tn = dn, vn = 9.91256303526217e-3;
+        q = vn/Math.exp(-0.5*dn*dn);
+        KN[0] = (long)((dn/q)*m1);
+        KN[1] = 0;
+        WN[0] = q/m1;
+        WN[127] = dn/m1;
+        FN[0] = 1.0;
+        FN[127] = Math.exp(-0.5*dn*dn);
+        for (int i=126; i>=1; i--) {
+            dn = Math.sqrt(-2.0*Math.log(vn/dn + Math.exp(-0.5*dn*dn)));
+            KN[i+1] = (long)((dn/tn)*m1);
+            tn = dn;
+            FN[i] = Math.exp(-0.5*dn*dn);
+            WN[i] = dn/m1;
+        }
+    }
+
+    // xoshiro256** state
+    long s0, s1, s2, s3;
+
+    double cachedGaussian;
+    boolean haveCachedGaussian;
+
+    // Standard normal auxiliary variables consumed (via the normal CDF)
+    // by nextDouble() before falling back to the pseudorandom sequence.
+    double[] auxValues;
+    int auxPos, auxEnd;
+
+    public RandomStream(long seed) {
+        setSeed(seed);
+    }
+
+    /**
+     * Reset stream using the given seed.
+     *
+     * @param seed
+     */
+    public void setSeed(long seed) {
+        s0 = mix(seed += GOLDEN_GAMMA);
+        s1 = mix(seed += GOLDEN_GAMMA);
+        s2 = mix(seed += GOLDEN_GAMMA);
+        s3 = mix(seed + GOLDEN_GAMMA);
+        haveCachedGaussian = false;
+        auxPos = auxEnd = 0;
+    }
+
+    /**
+     * Draw the next uniforms from the normal CDF of the given auxiliary
+     * standard normal variables, so that small changes to these produce
+     * small changes to the variates drawn.  (While auxiliary variables
+     * remain, exponential variates are drawn by inversion rather than
+     * using the ziggurat.)  Once the auxiliary variables are exhausted
+     * the stream continues with its pseudorandom sequence.  Cleared by
+     * setSeed().
+     *
+     * @param values auxiliary standard normal variables
+     * @param offset index of first variable to use
+     * @param length number of variables to use
+     */
+    public void useAuxiliaryNormals(double[] values, int offset, int length) {
+        auxValues = values;
+        auxPos = offset;
+        auxEnd = offset + length;
+    }
+
+    /**
+     * SplitMix64 finalisation function.
+     *
+     * @param z
+     * @return well-mixed bits of z
+     */
+    public static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Derive the seed of an independent sub-stream identified by two
+     * indices (e.g. tree interval and particle) from a master seed.
+     *
+     * @param seed master seed
+     * @param i first index
+     * @param j second index
+     * @return derived seed
+     */
+    public static long deriveSeed(long seed, long i, long j) {
+        return mix(seed ^ mix(mix(i*GOLDEN_GAMMA + 1) + j*GOLDEN_GAMMA));
+    }
+
+    /**
+     * @return uniformly distributed 64 bit integer.
+     */
+    public long nextLong() {
+        final long result = Long.rotateLeft(s1*5, 7)*9;
+        final long t = s1 << 17;
+
+        s2 ^= s0;
+        s3 ^= s1;
+        s1 ^= s2;
+        s0 ^= s3;
+        s2 ^= t;
+        s3 = Long.rotateLeft(s3, 45);
+
+        return result;
+    }
+
+    /**
+     * @return uniformly distributed double in [0,1).
+     */
+    public double nextDouble() {
+        if (auxPos < auxEnd)
+            return Math.min(normalCDF(auxValues[auxPos++]), MAX_UNIFORM);
+
+        return (nextLong() >>> 11) * 0x1.0p-53;
+    }
+
+    /**
+     * Standard normal cumulative distribution function, using the
+     * complementary error function approximation of Numerical Recipes
+     * (fractional error below 1.2e-7).
+     *
+     * @param x
+     * @return P(Z &lt; x) for standard normal Z
+     */
+    public static double normalCDF(double x) {
+        double z = Math.abs(x)/Math.sqrt(2.0);
+        double t = 1.0/(1.0 + 0.5*z);
+        double erfc = t*Math.exp(-z*z - 1.26551223 + t*(1.00002368
+            + t*(0.37409196 + t*(0.09678418 + t*(-0.18628806
+            + t*(0.27886807 + t*(-1.13520398 + t*(1.48851587
+            + t*(-0.82215223 + t*0.17087277)))))))));
+
+        return x >= 0 ? 1.0 - 0.5*erfc : 0.5*erfc;
+    }
+
+    /**
+     * @param n upper bound
+     * @return uniformly distributed integer in [0,n).
+     */
+    public int nextInt(int n) {
+        return (int)(nextDouble()*n);
+    }
+
+    /**
+     * @param rate
+     * @return exponentially distributed variate with given rate.
+     */
+    public double nextExponential(double rate) {
+        if (auxPos < auxEnd)
+            return -Math.log1p(-nextDouble())/rate;
+
+        return nextStandardExponential()/rate;
+    }
+
+    /**
+     * Draw a unit exponential variate using the ziggurat method.  The
+     * layer is chosen using the low bits of a 64 bit integer and the
+     * position within the layer using its high bits, avoiding the
+     * correlation between the two present in the original algorithm.
+     *
+     * @return exponentially distributed variate with unit rate.
+     */
+    private double nextStandardExponential() {
+        while (true) {
+            long bits = nextLong();
+            int i = (int)bits & 255;
+            long j = bits >>> 32;
+
+            if (j < KE[i])
+                return j*WE[i];
+
+            if (i == 0)
+                return EXP_R - Math.log1p(-nextDouble());
+
+            double x = j*WE[i];
+            if (FE[i] + nextDouble()*(FE[i-1] - FE[i]) < Math.exp(-x))
+                return x;
+        }
+    }
+
+    /**
+     * Draw a standard normal variate using the ziggurat method.
+     *
+     * @return standard normal variate.
+     */
+    private double nextStandardGaussian() {
+        while (true) {
+            long bits = nextLong();
+            int i = (int)bits & 127;
+            long j = bits >> 32;
+
+            if (Math.abs(j) < KN[i])
+                return j*WN[i];
+
+            if (i == 0) {
+                // Sample from the tail beyond NORM_R (Marsaglia 1964)
+                double x, y;
+                do {
+                    x = -Math.log1p(-nextDouble())/NORM_R;
+                    y = -Math.log1p(-nextDouble());
+                } while (y+y < x*x);
+
+                return j > 0 ? NORM_R + x : -NORM_R - x;
+            }
+
+            double x = j*WN[i];
+            if (FN[i] + nextDouble()*(FN[i-1] - FN[i]) < Math.exp(-0.5*x*x))
+                return x;
+        }
+    }
+
+    /**
+     * @return standard normal variate (ziggurat method, or the Marsaglia
+     * polar method while auxiliary variables remain).
+     */
+    public double nextGaussian() {
+        if (haveCachedGaussian) {
+            haveCachedGaussian = false;
+            return cachedGaussian;
+        }
+
+        if (auxPos >= auxEnd)
+            return nextStandardGaussian();
+
+        double v1, v2, s;
+        do {
+            v1 = 2*nextDouble() - 1;
+            v2 = 2*nextDouble() - 1;
+            s = v1*v1 + v2*v2;
+        } while (s >= 1 || s == 0);
+
+        double scale = Math.sqrt(-2*Math.log(s)/s);
+        cachedGaussian = v2*scale;
+        haveCachedGaussian = true;
+
+        return v1*scale;
+    }
+
+    /**
+     * Draw a Poisson variate, by inversion for small means and by the
+     * PTRS transformed rejection method of Hormann (1993) otherwise.
+     *
+     * @param mean
+     * @return Poisson-distributed variate
+     */
+    public long nextPoisson(double mean) {
+        if (!(mean > 0.0))
+            return 0;
+
+        if (mean < 10.0) {
+            double p = Math.exp(-mean);
+            double F = p;
+            double u = nextDouble();
+            long k = 0;
+            while (u > F && p > 0.0) {
+                k += 1;
+                p *= mean/k;
+                F += p;
+            }
+            return k;
+        }
+
+        double slam = Math.sqrt(mean);
+        double loglam = Math.log(mean);
+        double b = 0.931 + 2.53*slam;
+        double a = -0.059 + 0.02483*b;
+        double invalpha = 1.1239 + 1.1328/(b-3.4);
+        double vr = 0.9277 - 3.6224/(b-2);
+
+        while (true) {
+            double U = nextDouble() - 0.5;
+            double V = nextDouble();
+            double us = 0.5 - Math.abs(U);
+            long k = (long)Math.floor((2*a/us + b)*U + mean + 0.43);
+
+            if (us >= 0.07 && V <= vr)
+                return k;
+
+            if (k < 0 || (us < 0.013 && V > us))
+                continue;
+
+            if (Math.log(V) + Math.log(invalpha) - Math.log(a/(us*us) + b)
+                <= -mean + k*loglam - logFactorial(k))
+                return k;
+        }
+    }
+
+    /**
+     * Draw a binomial variate, by inversion when the mean is small and by
+     * the BTRD transformed rejection method of Hormann (1993) otherwise.
+     *
+     * @param n number of trials
+     * @param p success probability
+     * @return binomially distributed variate
+     */
+    public long nextBinomial(long n, double p) {
+        if (n <= 0 || !(p > 0.0))
+            return 0;
+
+        if (p >= 1.0)
+            return n;
+
+        if (p > 0.5)
+            return n - nextBinomial(n, 1.0 - p);
+
+        double q = 1.0 - p;
+
+        if (n*p < 10.0) {
+            double s = p/q;
+            double a = (n+1)*s;
+            double f = Math.exp(n*Math.log1p(-p));
+            double u = nextDouble();
+            long k = 0;
+            while (u > f && k < n) {
+                u -= f;
+                k += 1;
+                f *= a/k - s;
+            }
+            return k;
+        }
+
+        long m = (long)Math.floor((n+1)*p);
+        double r = p/q;
+        double nr = (n+1)*r;
+        double npq = n*p*q;
+        double spq = Math.sqrt(npq);
+        double b = 1.15 + 2.53*spq;
+        double a = -0.0873 + 0.0248*b + 0.01*p;
+        double c = n*p + 0.5;
+        double alpha = (2.83 + 5.1/b)*spq;
+        double vr = 0.92 - 4.2/b;
+        double urvr = 0.86*vr;
+
+        while (true) {
+            double V = nextDouble();
+            double U;
+
+            if (V <= urvr) {
+                U = V/vr - 0.43;
+                return (long)Math.floor((2*a/(0.5 - Math.abs(U)) + b)*U + c);
+            }
+
+            if (V >= vr) {
+                U = nextDouble() - 0.5;
+            } else {
+                U = V/vr - 0.93;
+                U = Math.signum(U)*0.5 - U;
+                V = nextDouble()*vr;
+            }
+
+            double us = 0.5 - Math.abs(U);
+            long k = (long)Math.floor((2*a/us + b)*U + c);
+            if (k < 0 || k > n)
+                continue;
+
+            V *= alpha/(a/(us*us) + b);
+            long km = Math.abs(k - m);
+
+            if (km <= 15) {
+                // Recursive evaluation of f(k)/f(m)
+                double f = 1.0;
+                if (m < k) {
+                    for (long i=m+1; i<=k; i++)
+                        f *= nr/i - r;
+                } else {
+                    for (long i=k+1; i<=m; i++)
+                        V *= nr/i - r;
+                }
+
+                if (V <= f)
+                    return k;
+
+                continue;
+            }
+
+            // Squeeze using upper and lower bounds on log f(k)
+            V = Math.log(V);
+            double rho = (km/npq)*(((km/3.0 + 0.625)*km + 1.0/6.0)/npq + 0.5);
+            double t = -(double)km*km/(2*npq);
+            if (V < t - rho)
+                return k;
+            if (V > t + rho)
+                continue;
+
+            double nm = n - m + 1;
+            double h = (m + 0.5)*Math.log((m+1)/(r*nm))
+                + stirlingCorrection(m) + stirlingCorrection(n-m);
+            double nk = n - k + 1;
+            if (V <= h + (n+1)*Math.log(nm/nk)
+                + (k + 0.5)*Math.log(nk*r/(k+1))
+                - stirlingCorrection(k) - stirlingCorrection(n-k))
+                return k;
+        }
+    }
+
+    /**
+     * @param k
+     * @return log(k!) - [(k+1/2)log(k+1) - (k+1) + log(2 pi)/2], the error
+     * of Stirling's approximation to log(k!)
+     */
+    static double stirlingCorrection(long k) {
+        if (k < LOG_FACTORIAL.length)
+            return LOG_FACTORIAL[(int)k] - (k + 0.5)*Math.log(k+1) + (k+1)
+                - 0.5*Math.log(2*Math.PI);
+
+        double x = k + 1;
+        double x2 = x*x;
+        return (1.0/12 - (1.0/360 - 1.0/(1260*x2))/x2)/x;
+    }
+
+    /**
+     * @param k
+     * @return log(k!)
+     */
+    static double logFactorial(long k) {
+        if (k < LOG_FACTORIAL.length)
+            return LOG_FACTORIAL[(int)k];
+
+        // Stirling series for log Gamma(k+1)
+        double x = k + 1;
+        double x2 = x*x;
+        return (x - 0.5)*Math.log(x) - x + 0.5*Math.log(2*Math.PI)
+            + (1.0/12 - (1.0/360 - 1.0/(1260*x2))/x2)/x;
+    }
+}
@@ -101,6 +101,20 @@ public class Reaction extends BEASTObject {
 
     protected ReactantNodule reactionParentNodule;
 
+    // Index of this reaction within its model, assigned by Model.
+    int index = -1;
+
+    // Compiled stoichiometry, indexed by Type.getIndex().  These are
+    // filled in by compile() once the model has assigned type indices.
+    protected int[] reactantIndices = new int[0];
+    protected int[] reactantOrders = new int[0];
+    protected int[] deltaIndices = new int[0];
+    protected int[] deltaValues = new int[0];
+
+    // Propensity and update code specialised to this reaction's shape,
+    // built by compile().
+    ReactionKernel kernel;
+
     @Override
     public void initAndValidate() {
 
@@ -140,6 +154,46 @@ public class Reaction extends BEASTObject {
 
     }
 
+    /**
+     * Build the array representation of the reactant orders and state
+     * deltas, and from these the kernel used by getPropensity() and
+     * incrementState().  Must be called after the owning Model has
+     * assigned indices to all types.
+     */
+    void compile() {
+        int nReactantTypes = reactants.elementSet().size();
+        reactantIndices = new int[nReactantTypes];
+        reactantOrders = new int[nReactantTypes];
+
+        int i = 0;
+        for (Type type : reactants.elementSet()) {
+            reactantIndices[i] = type.getIndex();
+            reactantOrders[i] = reactants.count(type);
+            i += 1;
+        }
+
+        deltaIndices = new int[deltas.size()];
+        deltaValues = new int[deltas.size()];
+
+        i = 0;
+        for (Type type : deltas.keySet()) {
+            deltaIndices[i] = type.getIndex();
+            deltaValues[i] = deltas.get(type);
+            i += 1;
+        }
+
+        kernel = new ReactionKernel(rateInput.get(),
+            reactantIndices, reactantOrders, deltaIndices, deltaValues);
+    }
+
+    /**
+     * @return kernel specialised to this reaction, available once the
+     * owning Model has been initialised.
+     */
+    public ReactionKernel getKernel() {
+        return kernel;
+    }
+
     /**
      * Determine the number of reactant permutations available in the given
      * state. Used to calculate propensities of Reactions and the number of
@@ -152,20 +206,7 @@ public class Reaction extends BEASTObject {
      * @return permutation count.
      */
     protected double getReactantPermutations(SystemState state) {
-        double perms = 1;
-
-        for (Type reactant : reactants.elementSet()) {
-            int m = reactants.count(reactant);
-            long N = state.get(reactant);
-            for (long n = N; n>N-m && n>=0; n--) {
-                perms *= n;
-            }
-
-            if (perms==0)
-                return 0;
-        } 
-
-        return perms;
+        return kernel.getReactantPermutations(state.counts);
     }
 
     /**
@@ -175,10 +216,55 @@ public class Reaction extends BEASTObject {
      * @return reaction propensity
      */
     public double getPropensity(SystemState state) {
-        if (rateInput.get() != null)
-            return getReactantPermutations(state)*rateInput.get().getValue();
-        else
+        return kernel.getPropensity(state.counts);
+    }
+
+    /**
+     * Calculate reaction propensity for a state in which population sizes
+     * are approximated by real numbers, as used by hybrid propagators.
+     * 
+     * @param y real-valued population sizes indexed by type
+     * @return reaction propensity
+     */
+    public double getPropensity(double[] y) {
+        RealParameter rate = rateInput.get();
+        if (rate == null)
             return 0.0;
+
+        double perms = 1;
+        for (int i=0; i<reactantIndices.length; i++) {
+            double N = y[reactantIndices[i]];
+            for (int k=0; k<reactantOrders[i]; k++)
+                perms *= Math.max(N-k, 0.0);
+        }
+
+        return perms*rate.getValue();
+    }
+
+    /**
+     * @return index of this reaction within the model.
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Determine whether the propensity of this reaction can change when
+     * the given reaction fires, i.e. whether any of the types whose
+     * numbers other changes are reactants of this reaction.
+     *
+     * @param other reaction which fires
+     * @return true if this reaction's propensity depends on other
+     */
+    boolean dependsOn(Reaction other) {
+        for (int deltaIdx : other.deltaIndices) {
+            for (int reactantIdx : reactantIndices) {
+                if (deltaIdx == reactantIdx)
+                    return true;
+            }
+        }
+
+        return false;
     }
 
     /**
@@ -194,8 +280,26 @@ public class Reaction extends BEASTObject {
      * @param state state to increment
      */
     public void incrementState(SystemState state) {
-        for (Type type : deltas.keySet())
-            state.put(type, state.get(type)+deltas.get(type));
+        kernel.incrementState(state.counts);
+    }
+
+    /**
+     * Increment the given state by applying this reaction the given
+     * number of times.
+     * 
+     * @param state state to increment
+     * @param multiplicity number of times to apply the reaction
+     */
+    public void incrementState(SystemState state, long multiplicity) {
+        kernel.incrementState(state.counts, multiplicity);
+    }
+
+    /**
+     * @return total number of reactant individuals consumed by this
+     * reaction, i.e. its order.
+     */
+    public int getOrder() {
+        return reactants.size();
     }
 
     @Override
@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package packagex;
+
+import beast.core.parameter.RealParameter;
+
+/**
+ * Propensity and state update code specialised to the shape of a single
+ * reaction.  Reaction.compile() classifies the reaction's reactants and
+ * state changes, so that the common cases (reactions of order two or
+ * less affecting at most two types) are evaluated by straight-line code
+ * free of loops over the reactants and of checks for the presence of a
+ * rate.  Reactions of any other shape fall back to the general loops.
+ *
+ * All shapes are handled by this single final class, dispatching on a
+ * shape tag, so that call sites iterating over the reactions of a model
+ * remain monomorphic.
+ *
+ * Kernels are rebuilt whenever the owning Model is initialised, and so
+ * always reflect the current model structure.  Rates are read from the
+ * rate parameter on every call, so remain free to change.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public final class ReactionKernel {
+
+    // Propensity shapes
+    static final int ZERO = 0, CONSTANT = 1, UNIMOLECULAR = 2,
+        DIMERISATION = 3, BIMOLECULAR = 4, GENERAL = 5;
+
+    // State update shapes
+    static final int NO_UPDATE = 0, SINGLE_UPDATE = 1, PAIR_UPDATE = 2,
+        GENERAL_UPDATE = 3;
+
+    final int shape, updateShape;
+    final RealParameter rate;
+
+    // First and second reactant types (UNIMOLECULAR, DIMERISATION and
+    // BIMOLECULAR), and reactants of other shapes.
+    final int a, b;
+    final int[] reactantIndices, reactantOrders;
+
+    // Types changed and the changes to each (SINGLE_UPDATE and
+    // PAIR_UPDATE), and changes of other shapes.
+    final int ua, da, ub, db;
+    final int[] deltaIndices, deltaValues;
+
+    /**
+     * Build the kernel for a compiled reaction.
+     *
+     * @param rate reaction rate, or null if the reaction has none
+     * @param reactantIndices indices of distinct reactant types
+     * @param reactantOrders number of individuals of each reactant type
+     * @param deltaIndices indices of types changed by the reaction
+     * @param deltaValues changes in the numbers of those types
+     */
+    ReactionKernel(RealParameter rate,
+        int[] reactantIndices, int[] reactantOrders,
+        int[] deltaIndices, int[] deltaValues) {
+
+        this.rate = rate;
+        this.reactantIndices = reactantIndices;
+        this.reactantOrders = reactantOrders;
+        this.deltaIndices = deltaIndices;
+        this.deltaValues = deltaValues;
+
+        if (rate == null)
+            shape = ZERO;
+        else if (reactantIndices.length == 0)
+            shape = CONSTANT;
+        else if (reactantIndices.length == 1 && reactantOrders[0] == 1)
+            shape = UNIMOLECULAR;
+        else if (reactantIndices.length == 1 && reactantOrders[0] == 2)
+            shape = DIMERISATION;
+        else if (reactantIndices.length == 2
+            && reactantOrders[0] == 1 && reactantOrders[1] == 1)
+            shape = BIMOLECULAR;
+        else
+            shape = GENERAL;
+
+        a = reactantIndices.length > 0 ? reactantIndices[0] : -1;
+        b = reactantIndices.length > 1 ? reactantIndices[1] : -1;
+
+        switch (deltaIndices.length) {
+            case 0:
+                updateShape = NO_UPDATE;
+                break;
+            case 1:
+                updateShape = SINGLE_UPDATE;
+                break;
+            case 2:
+                updateShape = PAIR_UPDATE;
+                break;
+            default:
+                updateShape = GENERAL_UPDATE;
+        }
+
+        ua = deltaIndices.length > 0 ? deltaIndices[0] : -1;
+        da = deltaIndices.length > 0 ? deltaValues[0] : 0;
+        ub = deltaIndices.length > 1 ? deltaIndices[1] : -1;
+        db = deltaIndices.length > 1 ? deltaValues[1] : 0;
+    }
+
+    /**
+     * Determine the number of reactant permutations available in a state,
+     * returned as a double to avoid integer overflow.
+     *
+     * @param counts population sizes indexed by type
+     * @return permutation count
+     */
+    public double getReactantPermutations(long[] counts) {
+        switch (shape) {
+            case CONSTANT:
+                return 1;
+
+            case UNIMOLECULAR:
+                return counts[a] < 1 ? 0 : counts[a];
+
+            case DIMERISATION: {
+                long N = counts[a];
+                if (N < 2)
+                    return 0;
+
+                double perms = N;
+                return perms*(N-1);
+            }
+
+            case BIMOLECULAR: {
+                long Na = counts[a], Nb = counts[b];
+                if (Na < 1 || Nb < 1)
+                    return 0;
+
+                double perms = Na;
+                return perms*Nb;
+            }
+
+            default:
+                return permutations(counts, reactantIndices, reactantOrders);
+        }
+    }
+
+    /**
+     * @param counts population sizes indexed by type
+     * @return reaction propensity
+     */
+    public double getPropensity(long[] counts) {
+        switch (shape) {
+            case ZERO:
+                return 0.0;
+
+            case CONSTANT:
+                return rate.getValue();
+
+            case UNIMOLECULAR: {
+                long N = counts[a];
+                return N < 1 ? 0.0 : N*rate.getValue();
+            }
+
+            case DIMERISATION: {
+                long N = counts[a];
+                if (N < 2)
+                    return 0.0;
+
+                double perms = N;
+                return perms*(N-1)*rate.getValue();
+            }
+
+            case BIMOLECULAR: {
+                long Na = counts[a], Nb = counts[b];
+                if (Na < 1 || Nb < 1)
+                    return 0.0;
+
+                double perms = Na;
+                return perms*Nb*rate.getValue();
+            }
+
+            default:
+                return permutations(counts, reactantIndices, reactantOrders)
+                    *rate.getValue();
+        }
+    }
+
+    /**
+     * Apply the reaction once.
+     *
+     * @param counts population sizes indexed by type, updated in place
+     */
+    public void incrementState(long[] counts) {
+        switch (updateShape) {
+            case NO_UPDATE:
+                break;
+
+            case SINGLE_UPDATE:
+                counts[ua] += da;
+                break;
+
+            case PAIR_UPDATE:
+                counts[ua] += da;
+                counts[ub] += db;
+                break;
+
+            default:
+                for (int i=0; i<deltaIndices.length; i++)
+                    counts[deltaIndices[i]] += deltaValues[i];
+        }
+    }
+
+    /**
+     * Apply the reaction the given number of times.
+     *
+     * @param counts population sizes indexed by type, updated in place
+     * @param multiplicity number of times to apply the reaction
+     */
+    public void incrementState(long[] counts, long multiplicity) {
+        switch (updateShape) {
+            case NO_UPDATE:
+                break;
+
+            case SINGLE_UPDATE:
+                counts[ua] += multiplicity*da;
+                break;
+
+            case PAIR_UPDATE:
+                counts[ua] += multiplicity*da;
+                counts[ub] += multiplicity*db;
+                break;
+
+            default:
+                for (int i=0; i<deltaIndices.length; i++)
+                    counts[deltaIndices[i]] += multiplicity*deltaValues[i];
+        }
+    }
+
+    /**
+     * General falling factorial product over reactants.
+     *
+     * @param counts population sizes indexed by type
+     * @param reactantIndices indices of distinct reactant types
+     * @param reactantOrders number of individuals of each reactant type
+     * @return permutation count
+     */
+    static double permutations(long[] counts, int[] reactantIndices,
+        int[] reactantOrders) {
+        double perms = 1;
+
+        for (int i=0; i<reactantIndices.length; i++) {
+            long N = counts[reactantIndices[i]];
+            int m = reactantOrders[i];
+            if (N<m)
+                return 0;
+
+            for (int k=0; k<m; k++)
+                perms *= N-k;
+        }
+
+        return perms;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package packagex;
+
+import java.util.List;
+
+/**
+ * Reaction propensities of a model evaluated for a particular system
+ * state.  Each thread propagating particles holds its own instance, so
+ * that the Model itself remains immutable during propagation.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class ReactionPropensities {
+
+    Model model;
+    List<Reaction> reactions;
+    ReactionKernel[] kernels;
+    int modelInitCount;
+    double[] propensities;
+    ReactionSelector selector;
+
+    public ReactionPropensities(Model model) {
+        this.model = model;
+        reactions = model.getReactions();
+        propensities = new double[reactions.size()];
+        updateKernels();
+
+        selector = ReactionSelector.create(
+            model.reactionSelectionInput.get(), reactions.size());
+    }
+
+    /**
+     * Fetch the kernels of the model's reactions, which are rebuilt each
+     * time the model is initialised.
+     */
+    private void updateKernels() {
+        kernels = new ReactionKernel[reactions.size()];
+        for (int r=0; r<kernels.length; r++)
+            kernels[r] = reactions.get(r).getKernel();
+        modelInitCount = model.getInitCount();
+    }
+
+    /**
+     * Calculate reaction propensities under given state.
+     * 
+     * @param state system state
+     */
+    public void calculate(SystemState state) {
+        if (modelInitCount != model.getInitCount())
+            updateKernels();
+
+        for (int r=0; r<propensities.length; r++)
+            propensities[r] = kernels[r].getPropensity(state.counts);
+
+        selector.reset(propensities);
+    }
+
+    /**
+     * Update previously computed reaction propensities following the
+     * firing of a reaction.  Only the propensities of reactions which
+     * depend on the fired reaction are recomputed.
+     *
+     * @param state system state following the reaction
+     * @param fired reaction which has just fired
+     */
+    public void update(SystemState state, Reaction fired) {
+
+        for (int r : model.getDependents(fired)) {
+            double thisProp = kernels[r].getPropensity(state.counts);
+            propensities[r] = thisProp;
+            selector.update(r, thisProp);
+        }
+    }
+
+    /**
+     * @param r reaction index
+     * @return previously computed propensity of reaction r.
+     */
+    public double get(int r) {
+        return propensities[r];
+    }
+
+    /**
+     * @return total of previously computed reaction propensities.
+     */
+    public double getTotal() {
+        return selector.getTotal();
+    }
+
+    /**
+     * Choose a reaction with probability proportional to its previously
+     * computed propensity.  The total propensity must be positive.
+     *
+     * @param rng random number stream
+     * @return chosen reaction
+     */
+    public Reaction select(RandomStream rng) {
+        return reactions.get(selector.select(rng));
+    }
+}
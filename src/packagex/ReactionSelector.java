@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package packagex;
+
+/**
+ * Data structure holding the propensities of a model's reactions which
+ * supports updating individual propensities and sampling a reaction with
+ * probability proportional to its propensity.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public abstract class ReactionSelector {
+
+    /**
+     * Available selector implementations.
+     */
+    public enum Method { LINEAR, SUM_TREE, COMPOSITION_REJECTION }
+
+    /**
+     * Create a new selector of the given kind.
+     *
+     * @param method kind of selector
+     * @param nReactions number of reactions
+     * @return new selector
+     */
+    public static ReactionSelector create(Method method, int nReactions) {
+        switch (method) {
+            case LINEAR:
+                return new LinearReactionSelector(nReactions);
+            case SUM_TREE:
+                return new SumTreeReactionSelector(nReactions);
+            case COMPOSITION_REJECTION:
+                return new CompositionRejectionReactionSelector(nReactions);
+            default:
+                throw new IllegalArgumentException(
+                    "Unsupported reaction selection method " + method);
+        }
+    }
+
+    /**
+     * Replace all propensities held by the selector.
+     *
+     * @param propensities array of propensities indexed by reaction
+     */
+    public abstract void reset(double[] propensities);
+
+    /**
+     * Set the propensity of a single reaction.
+     *
+     * @param r reaction index
+     * @param propensity new propensity
+     */
+    public abstract void update(int r, double propensity);
+
+    /**
+     * @return sum of all propensities.
+     */
+    public abstract double getTotal();
+
+    /**
+     * Sample a reaction with probability proportional to its propensity.
+     * The total propensity must be positive.
+     *
+     * @param rng random number stream
+     * @return index of the chosen reaction
+     */
+    public abstract int select(RandomStream rng);
+}
@@ -16,16 +16,166 @@
  */
 package packagex;
 
+import beast.core.StateNode;
 import beast.evolution.tree.Node;
 import beast.evolution.tree.Tree;
 
 /**
+ * Tree of reactions, maintaining a schedule of its nodes in order of
+ * increasing forward time (decreasing height).
+ *
  * @author Tim Vaughan (tgvaughan@gmail.com)
  */
 public class ReactionTree extends Tree {
 
+    /**
+     * Kind of tree event, according to number of node children.
+     */
+    public enum EventKind { LEAF, UNARY, BINARY }
+
+    // Node numbers in schedule order, event kinds and the index of the
+    // first event contemporaneous with each event.
+    private int[] eventNodeNrs;
+    private EventKind[] eventKinds;
+    private int[] eventGroupStarts;
+
+    // False if the tree may have been changed without marking it dirty.
+    private boolean scheduleValid;
+
     @Override
     protected Node newNode() {
         return new ReactionNode();
     }
+
+    /**
+     * Bring the event schedule up to date with the tree.  The previous
+     * order is repaired using insertion sort, so this costs O(n) when the
+     * node order is unchanged and O(n+k) when k pairs of nodes have
+     * swapped order.  Nothing is done if the tree belongs to a state and
+     * has not been edited since the schedule was last updated.  (Nodes of
+     * trees outside any state may be edited without marking the tree
+     * dirty, so these are always checked.)
+     */
+    public void updateEventSchedule() {
+        if (scheduleValid && getState() != null && !somethingIsDirty())
+            return;
+
+        int nNodes = getNodeCount();
+
+        if (eventNodeNrs == null || eventNodeNrs.length != nNodes) {
+            eventNodeNrs = new int[nNodes];
+            eventKinds = new EventKind[nNodes];
+            eventGroupStarts = new int[nNodes];
+            for (int i=0; i<nNodes; i++)
+                eventNodeNrs[i] = i;
+        }
+
+        for (int i=1; i<nNodes; i++) {
+            int nr = eventNodeNrs[i];
+            int j = i-1;
+            while (j>=0 && precedes(nr, eventNodeNrs[j])) {
+                eventNodeNrs[j+1] = eventNodeNrs[j];
+                j -= 1;
+            }
+            eventNodeNrs[j+1] = nr;
+        }
+
+        for (int i=0; i<nNodes; i++) {
+            Node node = getNode(eventNodeNrs[i]);
+            switch (node.getChildCount()) {
+                case 0:
+                    eventKinds[i] = EventKind.LEAF;
+                    break;
+                case 1:
+                    eventKinds[i] = EventKind.UNARY;
+                    break;
+                default:
+                    eventKinds[i] = EventKind.BINARY;
+            }
+
+            if (i>0 && TreeDensity.nodesContemp(node, getNode(eventNodeNrs[i-1])))
+                eventGroupStarts[i] = eventGroupStarts[i-1];
+            else
+                eventGroupStarts[i] = i;
+        }
+
+        scheduleValid = true;
+    }
+
+    @Override
+    public void restore() {
+        super.restore();
+        scheduleValid = false;
+    }
+
+    @Override
+    public void assignFrom(StateNode other) {
+        super.assignFrom(other);
+        scheduleValid = false;
+    }
+
+    @Override
+    public void assignFromFragile(StateNode other) {
+        super.assignFromFragile(other);
+        scheduleValid = false;
+    }
+
+    @Override
+    public void fromXML(org.w3c.dom.Node node) {
+        super.fromXML(node);
+        scheduleValid = false;
+    }
+
+    /**
+     * Order in which nodes appear in the schedule.  Ties in height are
+     * broken by node number.
+     *
+     * @param nrA number of first node
+     * @param nrB number of second node
+     * @return true if node nrA precedes node nrB
+     */
+    private boolean precedes(int nrA, int nrB) {
+        double heightA = getNode(nrA).getHeight();
+        double heightB = getNode(nrB).getHeight();
+        return heightA > heightB || (heightA == heightB && nrA < nrB);
+    }
+
+    /**
+     * @return number of events in schedule
+     */
+    public int getEventCount() {
+        return eventNodeNrs.length;
+    }
+
+    /**
+     * @param i index of event in schedule
+     * @return node corresponding to event
+     */
+    public Node getEventNode(int i) {
+        return getNode(eventNodeNrs[i]);
+    }
+
+    /**
+     * @param i index of event in schedule
+     * @return kind of event
+     */
+    public EventKind getEventKind(int i) {
+        return eventKinds[i];
+    }
+
+    /**
+     * @param i index of event in schedule
+     * @return index of the first event contemporaneous with event i
+     */
+    public int getEventGroupStart(int i) {
+        return eventGroupStarts[i];
+    }
+
+    /**
+     * @param i index of event in schedule
+     * @return true if event i is the last of its contemporaneous group
+     */
+    public boolean isEventGroupEnd(int i) {
+        return i+1 == eventNodeNrs.length || eventGroupStarts[i+1] != eventGroupStarts[i];
+    }
 }
@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package packagex;
+
+import beast.core.BEASTObject;
+import beast.core.Operator;
+import beast.core.StateNode;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Population trajectory held as part of the MCMC state for particle
+ * Gibbs inference.  The trajectory is the time-ordered sequence of
+ * reactions fired since the origin, stored as parallel arrays of
+ * reaction indices, times and multiplicities; population sizes at any
+ * time follow by applying these to the model's initial state.
+ *
+ * The trajectory is updated by ParticleGibbsOperator, which draws a new
+ * trajectory using conditional SMC, and is otherwise treated as data by
+ * TreeDensity.  Other operators are rejected.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class ReferenceTrajectory extends StateNode {
+
+    int nEvents, storedNEvents;
+    int[] reactions = new int[0], storedReactions = new int[0];
+    double[] times = new double[0], storedTimes = new double[0];
+    long[] multiplicities = new long[0], storedMultiplicities = new long[0];
+
+    @Override
+    public void initAndValidate() throws Exception { }
+
+    /**
+     * @return number of events in trajectory
+     */
+    public int getEventCount() {
+        return nEvents;
+    }
+
+    /**
+     * @param i event index
+     * @return index of reaction fired by event i
+     */
+    public int getReaction(int i) {
+        return reactions[i];
+    }
+
+    /**
+     * @param i event index
+     * @return time of event i
+     */
+    public double getTime(int i) {
+        return times[i];
+    }
+
+    /**
+     * @param i event index
+     * @return number of times the reaction fired at event i
+     */
+    public long getMultiplicity(int i) {
+        return multiplicities[i];
+    }
+
+    /**
+     * @param i event index
+     * @param modelReactions reactions of the model, in index order
+     * @return event i
+     */
+    public SystemEvent getEvent(int i, List<Reaction> modelReactions) {
+        return new SystemEvent(modelReactions.get(reactions[i]), times[i],
+            multiplicities[i]);
+    }
+
+    /**
+     * Find the first event occurring after the given time.
+     *
+     * @param t time
+     * @return index of first event with time greater than t, or the
+     * event count if there is none
+     */
+    public int getFirstEventAfter(double t) {
+        int lo = 0, hi = nEvents;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (times[mid] <= t)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+
+        return lo;
+    }
+
+    /**
+     * Replace the trajectory.  Operators must call startEditing() first.
+     *
+     * @param newNEvents number of events
+     * @param newReactions reaction indices
+     * @param newTimes event times, in increasing order
+     * @param newMultiplicities event multiplicities
+     */
+    public void setEvents(int newNEvents, int[] newReactions,
+        double[] newTimes, long[] newMultiplicities) {
+        ensureCapacity(newNEvents);
+
+        nEvents = newNEvents;
+        System.arraycopy(newReactions, 0, reactions, 0, nEvents);
+        System.arraycopy(newTimes, 0, times, 0, nEvents);
+        System.arraycopy(newMultiplicities, 0, multiplicities, 0, nEvents);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > reactions.length) {
+            reactions = Arrays.copyOf(reactions, capacity);
+            times = Arrays.copyOf(times, capacity);
+            multiplicities = Arrays.copyOf(multiplicities, capacity);
+        }
+    }
+
+    @Override
+    public void setEverythingDirty(boolean isDirty) {
+        setSomethingIsDirty(isDirty);
+    }
+
+    @Override
+    public StateNode copy() {
+        ReferenceTrajectory copy = new ReferenceTrajectory();
+        copy.setID(getID());
+        copy.index = index;
+        copy.setEvents(nEvents, reactions, times, multiplicities);
+        return copy;
+    }
+
+    @Override
+    public void assignTo(StateNode other) {
+        other.assignFrom(this);
+    }
+
+    @Override
+    public void assignFrom(StateNode other) {
+        ReferenceTrajectory traj = (ReferenceTrajectory)other;
+        setID(traj.getID());
+        index = traj.index;
+        assignFromFragile(other);
+    }
+
+    @Override
+    public void assignFromFragile(StateNode other) {
+        ReferenceTrajectory traj = (ReferenceTrajectory)other;
+        setEvents(traj.nEvents, traj.reactions, traj.times,
+            traj.multiplicities);
+    }
+
+    /**
+     * Trajectories are written as a sequence of reaction:time:multiplicity
+     * triples separated by whitespace.
+     *
+     * @param node XML node
+     */
+    @Override
+    public void fromXML(org.w3c.dom.Node node) {
+        String content = node.getTextContent().trim();
+        String[] strEvents = content.isEmpty()
+            ? new String[0] : content.split("\\s+");
+
+        ensureCapacity(strEvents.length);
+        nEvents = strEvents.length;
+        for (int i=0; i<nEvents; i++) {
+            String[] fields = strEvents[i].split(":");
+            reactions[i] = Integer.parseInt(fields[0]);
+            times[i] = Double.parseDouble(fields[1]);
+            multiplicities[i] = Long.parseLong(fields[2]);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i=0; i<nEvents; i++) {
+            if (i>0)
+                sb.append(" ");
+            sb.append(reactions[i]).append(":").append(times[i])
+                .append(":").append(multiplicities[i]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Ensure no operator other than ParticleGibbsOperator modifies the
+     * trajectory, as nothing else preserves its conditional distribution.
+     */
+    public void checkOperators() {
+        for (Object output : getOutputs()) {
+            if (output instanceof Operator
+                && !(output instanceof ParticleGibbsOperator))
+                throw new IllegalArgumentException("Reference trajectory "
+                    + getID() + " may only be operated on by "
+                    + "ParticleGibbsOperator, not "
+                    + ((BEASTObject)output).getID() + ".");
+        }
+    }
+
+    @Override
+    public int scale(double fScale) throws Exception {
+        // Unreachable once checkOperators() has been called.
+        throw new IllegalArgumentException(
+            "Reference trajectories cannot be scaled.");
+    }
+
+    @Override
+    protected void store() {
+        if (storedReactions.length < reactions.length) {
+            storedReactions = new int[reactions.length];
+            storedTimes = new double[reactions.length];
+            storedMultiplicities = new long[reactions.length];
+        }
+
+        storedNEvents = nEvents;
+        System.arraycopy(reactions, 0, storedReactions, 0, nEvents);
+        System.arraycopy(times, 0, storedTimes, 0, nEvents);
+        System.arraycopy(multiplicities, 0, storedMultiplicities, 0, nEvents);
+    }
+
+    @Override
+    public void restore() {
+        int tmpN = nEvents;
+        nEvents = storedNEvents;
+        storedNEvents = tmpN;
+
+        int[] tmpReactions = reactions;
+        reactions = storedReactions;
+        storedReactions = tmpReactions;
+
+        double[] tmpTimes = times;
+        times = storedTimes;
+        storedTimes = tmpTimes;
+
+        long[] tmpMultiplicities = multiplicities;
+        multiplicities = storedMultiplicities;
+        storedMultiplicities = tmpMultiplicities;
+
+        hasStartedEditing = false;
+    }
+
+    /*
+     * Loggable implementation.  Only the number of events is logged: the
+     * trajectory itself is recorded in the state file.
+     */
+
+    @Override
+    public void init(PrintStream out) throws Exception {
+        out.print(getID() + ".eventCount\t");
+    }
+
+    @Override
+    public void log(int nSample, PrintStream out) {
+        out.print(nEvents + "\t");
+    }
+
+    @Override
+    public void close(PrintStream out) { }
+
+    /*
+     * Function implementation.
+     */
+
+    @Override
+    public int getDimension() {
+        return 1;
+    }
+
+    @Override
+    public double getArrayValue() {
+        return nEvents;
+    }
+
+    @Override
+    public double getArrayValue(int i) {
+        return nEvents;
+    }
+}
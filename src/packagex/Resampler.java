@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package packagex;
+
+/**
+ * Draws ancestor indices for a population of weighted particles.  All
+ * schemes run in O(N) time by merging an ordered set of uniform variates
+ * with the cumulative weights.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class Resampler {
+
+    /**
+     * Available resampling schemes.
+     */
+    public enum Scheme { MULTINOMIAL, STRATIFIED, SYSTEMATIC, RESIDUAL }
+
+    Scheme scheme;
+    double[] uniforms, residualWeights;
+
+    public Resampler(Scheme scheme, int nParticles) {
+        this.scheme = scheme;
+        uniforms = new double[nParticles];
+        residualWeights = new double[nParticles];
+    }
+
+    /**
+     * Compute the effective sample size of a set of particle weights.
+     *
+     * @param weights particle weights
+     * @return effective sample size
+     */
+    public static double getESS(double[] weights) {
+        double sum = 0.0, sumSq = 0.0;
+        for (double w : weights) {
+            sum += w;
+            sumSq += w*w;
+        }
+
+        return sum*sum/sumSq;
+    }
+
+    /**
+     * Choose the ancestor of each new particle.
+     *
+     * @param weights particle weights
+     * @param totalWeight sum of particle weights
+     * @param ancestors array in which to place the index of the ancestor
+     *                  of each new particle
+     * @param rng random number stream
+     */
+    public void resample(double[] weights, double totalWeight, int[] ancestors,
+        RandomStream rng) {
+        int N = ancestors.length;
+
+        switch (scheme) {
+            case MULTINOMIAL:
+                drawSortedUniforms(N, rng);
+                assignAncestors(weights, totalWeight, N, ancestors, 0);
+                break;
+
+            case STRATIFIED:
+                for (int i=0; i<N; i++)
+                    uniforms[i] = (i + rng.nextDouble())/N;
+                assignAncestors(weights, totalWeight, N, ancestors, 0);
+                break;
+
+            case SYSTEMATIC:
+                double u = rng.nextDouble();
+                for (int i=0; i<N; i++)
+                    uniforms[i] = (i + u)/N;
+                assignAncestors(weights, totalWeight, N, ancestors, 0);
+                break;
+
+            case RESIDUAL:
+                int nAssigned = 0;
+                double residualTotal = 0.0;
+                for (int p=0; p<weights.length; p++) {
+                    double expected = N*weights[p]/totalWeight;
+                    int copies = (int)expected;
+                    for (int c=0; c<copies; c++)
+                        ancestors[nAssigned++] = p;
+
+                    residualWeights[p] = expected - copies;
+                    residualTotal += residualWeights[p];
+                }
+
+                int nResidual = N - nAssigned;
+                if (nResidual > 0) {
+                    drawSortedUniforms(nResidual, rng);
+                    assignAncestors(residualWeights, residualTotal, nResidual,
+                        ancestors, nAssigned);
+                }
+                break;
+
+            default:
+                throw new IllegalArgumentException(
+                    "Unsupported resampling scheme " + scheme);
+        }
+    }
+
+    /**
+     * Fill the first n elements of uniforms with an ordered sample of
+     * n uniform variates, generated in O(n) from normalised cumulative
+     * sums of exponential variates.
+     *
+     * @param n number of variates
+     * @param rng random number stream
+     */
+    private void drawSortedUniforms(int n, RandomStream rng) {
+        double sum = 0.0;
+        for (int i=0; i<n; i++) {
+            sum += rng.nextExponential(1.0);
+            uniforms[i] = sum;
+        }
+        sum += rng.nextExponential(1.0);
+
+        for (int i=0; i<n; i++)
+            uniforms[i] /= sum;
+    }
+
+    /**
+     * Assign ancestors by merging the first n (ordered) elements of
+     * uniforms with the cumulative weights.
+     *
+     * @param weights particle weights
+     * @param totalWeight sum of weights
+     * @param n number of ancestors to assign
+     * @param ancestors ancestor array
+     * @param offset index of first ancestor to assign
+     */
+    private void assignAncestors(double[] weights, double totalWeight,
+        int n, int[] ancestors, int offset) {
+
+        // (Round-off may carry the final targets beyond the last particle
+        // with non-zero weight, in which case that particle is used.)
+        int p = 0, lastPositive = 0;
+        double cumulative = weights[0];
+        for (int i=0; i<n; i++) {
+            double target = uniforms[i]*totalWeight;
+            while (cumulative <= target && p < weights.length-1) {
+                p += 1;
+                cumulative += weights[p];
+                if (weights[p] > 0.0)
+                    lastPositive = p;
+            }
+
+            ancestors[offset + i] = weights[p] > 0.0 ? p : lastPositive;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package packagex;
+
+/**
+ * Reaction selector based on a complete binary tree of partial sums over
+ * the reaction propensities.  Updates and selection are both O(log R),
+ * and since each internal node is recomputed from its children the total
+ * does not accumulate round-off drift.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class SumTreeReactionSelector extends ReactionSelector {
+
+    // Tree nodes stored heap-style: node i has children 2i and 2i+1,
+    // leaves begin at index size.  Element 0 is unused.
+    double[] tree;
+    int size, nReactions;
+
+    public SumTreeReactionSelector(int nReactions) {
+        this.nReactions = nReactions;
+
+        size = 1;
+        while (size < nReactions)
+            size *= 2;
+
+        tree = new double[2*size];
+    }
+
+    @Override
+    public void reset(double[] propensities) {
+        System.arraycopy(propensities, 0, tree, size, nReactions);
+        for (int i=size-1; i>0; i--)
+            tree[i] = tree[2*i] + tree[2*i+1];
+    }
+
+    @Override
+    public void update(int r, double propensity) {
+        int i = size + r;
+        tree[i] = propensity;
+
+        for (i /= 2; i>0; i /= 2)
+            tree[i] = tree[2*i] + tree[2*i+1];
+    }
+
+    @Override
+    public double getTotal() {
+        return tree[1];
+    }
+
+    @Override
+    public int select(RandomStream rng) {
+        double u = rng.nextDouble()*tree[1];
+
+        int i = 1;
+        while (i < size) {
+            int left = 2*i;
+            if (u < tree[left] || tree[left+1] <= 0.0) {
+                i = left;
+            } else {
+                u -= tree[left];
+                i = left + 1;
+            }
+        }
+
+        return i - size;
+    }
+}
@@ -25,12 +25,12 @@ public class SystemEvent {
 
     private Reaction reaction;
     private double time;
-    private int multiplicity;
+    private long multiplicity;
 
     public SystemEvent() {
     }
 
-    public SystemEvent(Reaction reaction, double time, int multiplicity) {
+    public SystemEvent(Reaction reaction, double time, long multiplicity) {
         this.reaction = reaction;
         this.time = time;
         this.multiplicity = multiplicity;
@@ -58,7 +58,7 @@ public class SystemEvent {
     /**
      * @return multiplicity of reaction.
      */
-    public int getMultiplicity() {
+    public long getMultiplicity() {
         return multiplicity;
     }
 }
@@ -16,19 +16,33 @@
  */
 package packagex;
 
-import java.util.HashMap;
-import java.util.Map;
-
 /**
- * The state of a system described by the model.
+ * The state of a system described by the model.  Population sizes are
+ * stored in a flat array indexed by Type.getIndex().
  *
  * @author Tim Vaughan <tgvaughan@gmail.com>
  */
 public class SystemState {
 
-    Map<Type, Long> stateMap = new HashMap<>();
+    long[] counts;
 
-    public SystemState() {
+    /**
+     * Constructor for subclasses which manage their own storage.
+     */
+    SystemState() {
+    }
+
+    public SystemState(int nTypes) {
+        counts = new long[nTypes];
+    }
+
+    /**
+     * Create a copy of the given state.
+     * 
+     * @param other state to copy
+     */
+    public SystemState(SystemState other) {
+        counts = other.counts.clone();
     }
 
     /**
@@ -40,12 +54,7 @@ public class SystemState {
      * @return the state object, allowing method chaining.
      */
     SystemState put(Type type, long size) {
-        if (size>0) {
-            stateMap.put(type, size);
-        } else {
-            if (stateMap.containsKey(type))
-                stateMap.remove(type);
-        }
+        counts[type.getIndex()] = size > 0 ? size : 0;
 
         return this;
     }
@@ -57,9 +66,33 @@ public class SystemState {
      * @return number of individuals with given type
      */
     long get(Type type) {
-        if (stateMap.containsKey(type))
-            return stateMap.get(type);
-        else
-            return 0;
+        return counts[type.getIndex()];
+    }
+
+    /**
+     * Retrieve the number of individuals of the type with the given index.
+     * 
+     * @param typeIdx
+     * @return number of individuals with given type
+     */
+    long get(int typeIdx) {
+        return counts[typeIdx];
+    }
+
+    /**
+     * @return number of types tracked by this state.
+     */
+    public int getTypeCount() {
+        return counts.length;
+    }
+
+    /**
+     * Make this state a copy of other.  Both states must refer to the
+     * same model.
+     * 
+     * @param other state to copy
+     */
+    public void assignFrom(SystemState other) {
+        System.arraycopy(other.counts, 0, counts, 0, counts.length);
     }
 }
@@ -0,0 +1,350 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package packagex;
+
+import beast.core.Input;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Propagates particles using adaptive tau-leaping with the step size
+ * selection procedure of Cao, Gillespie and Petzold (J. Chem. Phys. 124,
+ * 044109, 2006).  Reactions within criticalThreshold firings of
+ * exhausting one of their reactants are treated as critical and fire at
+ * most once per leap.  Whenever a leap would cover only a handful of
+ * expected firings, including when the end of the interval (the next
+ * tree event) is close, the propagator falls back to a burst of exact
+ * direct-method steps.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class TauLeapPropagator extends ParticlePropagator {
+
+    public Input<Double> epsilonInput = new Input<>("epsilon",
+        "Bound on the relative change in propensities over a single leap. "
+            + "(Default 0.03.)", 0.03);
+
+    public Input<Integer> criticalThresholdInput = new Input<>(
+        "criticalThreshold",
+        "Reactions able to fire fewer than this many times before "
+            + "exhausting a reactant are critical. (Default 10.)", 10);
+
+    public Input<Double> ssaThresholdInput = new Input<>("ssaThreshold",
+        "Exact simulation is used instead of a leap covering fewer than "
+            + "this many expected firings. (Default 10.)", 10.0);
+
+    public Input<Integer> ssaStepsInput = new Input<>("ssaSteps",
+        "Number of exact steps taken each time the propagator falls back "
+            + "to exact simulation. (Default 100.)", 100);
+
+    double epsilon, ssaThreshold;
+    int criticalThreshold, ssaSteps;
+
+    /**
+     * Workspace holding per-type reaction orders and leap storage.
+     */
+    public static class LeapWorkspace extends Workspace {
+
+        // Highest order of any reaction consuming each type, and the
+        // number of individuals of that type it consumes.
+        final int[] highestOrder, highestOrderMult;
+
+        final double[] propensities, mu, sigma2;
+        final boolean[] critical;
+        final long[] firings;
+        final SystemState trialState;
+
+        public LeapWorkspace(Model model) {
+            super(model);
+
+            int nTypes = model.getTypeCount();
+            int nReactions = model.getReactions().size();
+
+            highestOrder = new int[nTypes];
+            highestOrderMult = new int[nTypes];
+            for (Reaction react : model.getReactions()) {
+                int n = react.getOrder();
+                for (int i=0; i<react.reactantIndices.length; i++) {
+                    int type = react.reactantIndices[i];
+                    int m = react.reactantOrders[i];
+                    if (n > highestOrder[type]
+                        || (n == highestOrder[type] && m > highestOrderMult[type])) {
+                        highestOrder[type] = n;
+                        highestOrderMult[type] = m;
+                    }
+                }
+            }
+
+            propensities = new double[nReactions];
+            critical = new boolean[nReactions];
+            firings = new long[nReactions];
+            mu = new double[nTypes];
+            sigma2 = new double[nTypes];
+            trialState = new SystemState(nTypes);
+        }
+    }
+
+    @Override
+    public void initAndValidate() throws Exception {
+        epsilon = epsilonInput.get();
+        criticalThreshold = criticalThresholdInput.get();
+        ssaThreshold = ssaThresholdInput.get();
+        ssaSteps = ssaStepsInput.get();
+    }
+
+    @Override
+    public boolean isExact() {
+        return false;
+    }
+
+    @Override
+    public Workspace createWorkspace(Model model) {
+        return new LeapWorkspace(model);
+    }
+
+    @Override
+    public double propagate(Workspace ws, ParticleState particleState,
+        double startTime, double endTime) {
+        double logConditionalP = 0.0;
+
+        LeapWorkspace lws = (LeapWorkspace)ws;
+        double[] propensities = lws.propensities;
+        boolean[] critical = lws.critical;
+        long[] firings = lws.firings;
+        SystemState trialState = lws.trialState;
+        RandomStream rng = ws.rng;
+
+        List<Reaction> reactions = ws.model.getReactions();
+        long[] x = particleState.counts;
+
+        double t = startTime;
+        while (t < endTime) {
+
+            // Calculate propensities and identify critical reactions
+            double a0 = 0.0, a0crit = 0.0;
+            boolean haveNonCritical = false;
+            for (int r=0; r<propensities.length; r++) {
+                Reaction react = reactions.get(r);
+                double a = react.getPropensity(particleState);
+                propensities[r] = a;
+                a0 += a;
+
+                critical[r] = a > 0.0 && isCritical(react, x);
+                if (critical[r])
+                    a0crit += a;
+                else if (a > 0.0)
+                    haveNonCritical = true;
+            }
+
+            if (!(a0 > 0.0))
+                break;
+
+            double tauNonCrit = haveNonCritical
+                ? getLeapSize(lws, reactions, x)
+                : Double.POSITIVE_INFINITY;
+
+            if (tauNonCrit*a0 < ssaThreshold || (endTime-t)*a0 < ssaThreshold) {
+
+                // Leap too short to be worthwhile: take exact steps
+                ReactionPropensities ssaPropensities = ws.propensities;
+                ssaPropensities.calculate(particleState);
+                for (int step=0; step<ssaSteps; step++) {
+                    if (ssaPropensities.getTotal()>0.0)
+                        t += rng.nextExponential(ssaPropensities.getTotal());
+                    else
+                        t = Double.POSITIVE_INFINITY;
+
+                    if (t>endTime) {
+                        t = endTime;
+                        break;
+                    }
+
+                    Reaction react = ssaPropensities.select(rng);
+                    react.incrementState(particleState);
+                    ssaPropensities.update(particleState, react);
+
+                    logConditionalP += reactionFired(ws, particleState, react, 1, t);
+                }
+
+                continue;
+            }
+
+            // Leap, halving the non-critical step size until no
+            // population becomes negative
+            double tau;
+            while (true) {
+                double tauCrit = a0crit > 0.0
+                    ? rng.nextExponential(a0crit)
+                    : Double.POSITIVE_INFINITY;
+
+                tau = Math.min(Math.min(tauNonCrit, tauCrit), endTime - t);
+
+                trialState.assignFrom(particleState);
+                for (int r=0; r<propensities.length; r++) {
+                    firings[r] = 0;
+                    if (!critical[r] && propensities[r] > 0.0) {
+                        firings[r] = rng.nextPoisson(propensities[r]*tau);
+                        if (firings[r] > 0)
+                            reactions.get(r).incrementState(trialState, firings[r]);
+                    }
+                }
+
+                if (tauCrit == tau) {
+                    int r = chooseCritical(lws, a0crit);
+                    firings[r] = 1;
+                    reactions.get(r).incrementState(trialState);
+                }
+
+                if (isNonNegative(trialState.counts))
+                    break;
+
+                tauNonCrit /= 2.0;
+            }
+
+            particleState.assignFrom(trialState);
+            t += tau;
+
+            for (int r=0; r<firings.length; r++) {
+                if (firings[r] > 0)
+                    logConditionalP += reactionFired(ws, particleState,
+                        reactions.get(r), firings[r], t);
+            }
+        }
+
+        return logConditionalP;
+    }
+
+    /**
+     * Determine whether a reaction is within criticalThreshold firings of
+     * exhausting one of its reactants.
+     *
+     * @param react reaction
+     * @param x population sizes
+     * @return true if reaction is critical
+     */
+    private boolean isCritical(Reaction react, long[] x) {
+        for (int i=0; i<react.deltaIndices.length; i++) {
+            int v = react.deltaValues[i];
+            if (v < 0 && x[react.deltaIndices[i]]/(-v) < criticalThreshold)
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Compute the largest leap over which the expected relative change
+     * in every propensity (due to non-critical reactions) is bounded by
+     * epsilon.
+     *
+     * @param lws workspace
+     * @param reactions model reactions
+     * @param x population sizes
+     * @return leap size
+     */
+    private double getLeapSize(LeapWorkspace lws, List<Reaction> reactions,
+        long[] x) {
+        double[] propensities = lws.propensities;
+        double[] mu = lws.mu, sigma2 = lws.sigma2;
+
+        Arrays.fill(mu, 0.0);
+        Arrays.fill(sigma2, 0.0);
+
+        for (int r=0; r<propensities.length; r++) {
+            if (lws.critical[r] || !(propensities[r] > 0.0))
+                continue;
+
+            Reaction react = reactions.get(r);
+            for (int i=0; i<react.deltaIndices.length; i++) {
+                int type = react.deltaIndices[i];
+                int v = react.deltaValues[i];
+                mu[type] += v*propensities[r];
+                sigma2[type] += v*v*propensities[r];
+            }
+        }
+
+        double tau = Double.POSITIVE_INFINITY;
+        for (int type=0; type<x.length; type++) {
+            if (lws.highestOrder[type] == 0 || sigma2[type] == 0.0)
+                continue;
+
+            double bound = Math.max(
+                epsilon*x[type]/getG(lws, type, x[type]), 1.0);
+            if (mu[type] != 0.0)
+                tau = Math.min(tau, bound/Math.abs(mu[type]));
+            tau = Math.min(tau, bound*bound/sigma2[type]);
+        }
+
+        return tau;
+    }
+
+    /**
+     * Compute the factor g_i of Cao et al. relating the relative change in
+     * the population of a type to the relative change in the propensity
+     * of the highest-order reaction consuming it.
+     *
+     * @param lws workspace
+     * @param type type index
+     * @param n population of type
+     * @return g_i
+     */
+    private double getG(LeapWorkspace lws, int type, long n) {
+        int order = lws.highestOrder[type];
+        int mult = lws.highestOrderMult[type];
+
+        double g = mult;
+        for (int k=1; k<mult; k++) {
+            if (n > k)
+                g += k/(double)(n-k);
+        }
+
+        return g*order/mult;
+    }
+
+    /**
+     * Choose a critical reaction with probability proportional to its
+     * propensity.
+     *
+     * @param lws workspace
+     * @param a0crit total propensity of critical reactions
+     * @return index of chosen reaction
+     */
+    private int chooseCritical(LeapWorkspace lws, double a0crit) {
+        double u = lws.rng.nextDouble()*a0crit;
+
+        int choice = -1;
+        for (int r=0; r<lws.propensities.length; r++) {
+            if (lws.critical[r]) {
+                choice = r;
+                u -= lws.propensities[r];
+                if (u<0)
+                    break;
+            }
+        }
+
+        return choice;
+    }
+
+    private static boolean isNonNegative(long[] x) {
+        for (long n : x) {
+            if (n < 0)
+                return false;
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package packagex;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads particle trajectories written by TrajectoryRecorder, and
+ * reconstructs the histories of the particles surviving to the end of
+ * each recorded evaluation.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class TrajectoryReader implements AutoCloseable {
+
+    /**
+     * A single recorded likelihood evaluation.
+     */
+    public class Record {
+        final MappedByteBuffer data;
+        final long evaluation;
+        final double logP;
+        final int nIntervals;
+        final int[] intervalPositions;
+
+        // Position of each particle's first event in each interval,
+        // computed on demand.
+        final int[][] eventPositions;
+
+        Record(MappedByteBuffer data, long recordStart) {
+            this.data = data;
+            evaluation = data.getLong(4);
+            logP = data.getDouble(TrajectoryRecorder.LOGP_OFFSET);
+            nIntervals = data.getInt(TrajectoryRecorder.INTERVAL_COUNT_OFFSET);
+
+            int indexPosition = (int)(data.getLong(
+                TrajectoryRecorder.INDEX_POSITION_OFFSET) - recordStart);
+            intervalPositions = new int[nIntervals];
+            for (int i=0; i<nIntervals; i++)
+                intervalPositions[i] = (int)(data.getLong(indexPosition + 8*i)
+                    - recordStart);
+
+            eventPositions = new int[nIntervals][];
+        }
+
+        /**
+         * @param interval index of interval
+         * @return positions of the first event of each particle, followed
+         * by the position of the resampling flag
+         */
+        private int[] getEventPositions(int interval) {
+            if (eventPositions[interval] == null) {
+                int nParticles = getParticleCount(interval);
+                int countsPos = intervalPositions[interval] + 24;
+
+                int[] positions = new int[nParticles+1];
+                positions[0] = countsPos + 4*nParticles;
+                for (int p=0; p<nParticles; p++)
+                    positions[p+1] = positions[p] + TrajectoryRecorder.EVENT_BYTES
+                        *data.getInt(countsPos + 4*p);
+
+                eventPositions[interval] = positions;
+            }
+
+            return eventPositions[interval];
+        }
+
+        /**
+         * @return index of evaluation among all evaluations seen by the
+         * recorder
+         */
+        public long getEvaluation() {
+            return evaluation;
+        }
+
+        /**
+         * @return log likelihood estimate of the evaluation
+         */
+        public double getLogP() {
+            return logP;
+        }
+
+        /**
+         * @return number of tree intervals recorded
+         */
+        public int getIntervalCount() {
+            return nIntervals;
+        }
+
+        /**
+         * @param interval index of interval
+         * @return number of tree node at end of interval
+         */
+        public int getNodeNr(int interval) {
+            return data.getInt(intervalPositions[interval]);
+        }
+
+        /**
+         * @param interval index of interval
+         * @return time at start of interval
+         */
+        public double getStartTime(int interval) {
+            return data.getDouble(intervalPositions[interval] + 4);
+        }
+
+        /**
+         * @param interval index of interval
+         * @return time at end of interval
+         */
+        public double getEndTime(int interval) {
+            return data.getDouble(intervalPositions[interval] + 12);
+        }
+
+        /**
+         * @param interval index of interval
+         * @return number of particles propagated over interval
+         */
+        public int getParticleCount(int interval) {
+            return data.getInt(intervalPositions[interval] + 20);
+        }
+
+        /**
+         * @param interval index of interval
+         * @param particle index of particle
+         * @return events of particle over interval, in order of occurrence
+         */
+        public List<SystemEvent> getEvents(int interval, int particle) {
+            int[] positions = getEventPositions(interval);
+            int eventPos = positions[particle];
+            int count = (positions[particle+1] - eventPos)/TrajectoryRecorder.EVENT_BYTES;
+
+            List<SystemEvent> events = new ArrayList<>(count);
+            for (int e=0; e<count; e++) {
+                int pos = eventPos + TrajectoryRecorder.EVENT_BYTES*e;
+                events.add(new SystemEvent(
+                    model.getReactions().get(data.getInt(pos)),
+                    data.getDouble(pos + 4),
+                    data.getLong(pos + 12)));
+            }
+
+            return events;
+        }
+
+        /**
+         * @param interval index of interval
+         * @return ancestor (within the population propagated over this
+         * interval) of each particle following resampling at the end of
+         * the interval, or null if no resampling took place
+         */
+        public int[] getAncestors(int interval) {
+            int nParticles = getParticleCount(interval);
+            int pos = getEventPositions(interval)[nParticles];
+
+            if (data.get(pos) == 0)
+                return null;
+
+            int[] ancestors = new int[nParticles];
+            for (int p=0; p<nParticles; p++)
+                ancestors[p] = data.getInt(pos + 1 + 4*p);
+
+            return ancestors;
+        }
+
+        /**
+         * Reconstruct the complete history of a particle in the final
+         * population by following its ancestry back to the start of the
+         * filter.
+         *
+         * @param particle index of particle in final population
+         * @return events in the particle's history, in order of occurrence
+         */
+        public List<SystemEvent> getTrajectory(int particle) {
+            List<List<SystemEvent>> intervalEvents = new ArrayList<>();
+
+            int p = particle;
+            for (int interval=nIntervals-1; interval>=0; interval--) {
+                int[] ancestors = getAncestors(interval);
+                if (ancestors != null)
+                    p = ancestors[p];
+
+                intervalEvents.add(getEvents(interval, p));
+            }
+            Collections.reverse(intervalEvents);
+
+            List<SystemEvent> trajectory = new ArrayList<>();
+            for (List<SystemEvent> events : intervalEvents)
+                trajectory.addAll(events);
+
+            return trajectory;
+        }
+    }
+
+    final Model model;
+    final RandomAccessFile file;
+    final FileChannel channel;
+    final List<Record> records = new ArrayList<>();
+
+    /**
+     * Open a trajectory file and index the records it contains.
+     *
+     * @param fileName name of file written by TrajectoryRecorder
+     * @param model model used when the file was written
+     * @throws IOException
+     */
+    public TrajectoryReader(String fileName, Model model) throws IOException {
+        this.model = model;
+        file = new RandomAccessFile(fileName, "r");
+        channel = file.getChannel();
+
+        MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY,
+            0, TrajectoryRecorder.HEADER_BYTES);
+        if (header.getInt(0) != TrajectoryRecorder.FILE_MAGIC)
+            throw new IOException(fileName + " is not a trajectory file.");
+        if (header.getInt(4) != TrajectoryRecorder.VERSION)
+            throw new IOException("Unsupported trajectory file version.");
+        if (header.getInt(8) != model.getReactions().size())
+            throw new IOException("Trajectory file does not match model.");
+
+        // Records are followed either by the end of the file or by
+        // unused space in the final mapped region.
+        long pos = TrajectoryRecorder.HEADER_BYTES;
+        long size = channel.size();
+        while (pos + TrajectoryRecorder.RECORD_HEADER_BYTES <= size) {
+            MappedByteBuffer recordHeader = channel.map(
+                FileChannel.MapMode.READ_ONLY, pos,
+                TrajectoryRecorder.RECORD_HEADER_BYTES);
+            long length = recordHeader.getLong(TrajectoryRecorder.RECORD_LENGTH_OFFSET);
+            if (recordHeader.getInt(0) != TrajectoryRecorder.RECORD_MAGIC
+                || length <= 0 || pos + length > size)
+                break;
+
+            records.add(new Record(channel.map(FileChannel.MapMode.READ_ONLY,
+                pos, length), pos));
+            pos += length;
+        }
+    }
+
+    /**
+     * @return number of complete records in file
+     */
+    public int getRecordCount() {
+        return records.size();
+    }
+
+    /**
+     * @param i index of record
+     * @return record
+     */
+    public Record getRecord(int i) {
+        return records.get(i);
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
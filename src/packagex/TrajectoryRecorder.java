@@ -0,0 +1,396 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package packagex;
+
+import beast.core.BEASTObject;
+import beast.core.Input;
+import beast.core.Input.Validate;
+import beast.core.Loggable;
+import beast.core.util.Log;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Records the population trajectories simulated by TreeDensity's
+ * particle filter, together with the ancestry of resampled particles,
+ * to a memory-mapped binary file which can be read by TrajectoryReader.
+ *
+ * The file begins with a header (magic number, format version and
+ * number of model reactions) followed by one record per recorded
+ * evaluation.  Each record comprises:
+ *
+ *   int magic, long evaluation, long record length, double logP,
+ *   int interval count, long position of interval index,
+ *   interval blocks,
+ *   long[interval count] interval block positions.
+ *
+ * Each interval block comprises:
+ *
+ *   int node number, double start time, double end time,
+ *   int particle count, int[particle count] event counts,
+ *   events (int reaction index, double time, long multiplicity),
+ *   byte resampled flag, int[particle count] ancestors (if resampled).
+ *
+ * Only evaluations whose proposals are accepted are kept: a record is
+ * discarded when TreeDensity restores its state following a rejection.
+ * Including the recorder in a logger closes the file when the logger is
+ * closed; otherwise the file is closed when the JVM exits.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class TrajectoryRecorder extends BEASTObject implements Loggable {
+
+    public Input<String> fileNameInput = new Input<>("fileName",
+        "Name of file to which trajectories are written.",
+        Validate.REQUIRED);
+
+    public Input<Integer> recordEveryInput = new Input<>("recordEvery",
+        "Record trajectories of every this many likelihood evaluations. "
+            + "(Default 1.)", 1);
+
+    static final int FILE_MAGIC = 0x50585452;
+    static final int RECORD_MAGIC = 0x52454331;
+    static final int VERSION = 2;
+
+    static final int HEADER_BYTES = 12;
+    static final int EVENT_BYTES = 20;
+
+    // Offsets of fields patched once a record is complete.
+    static final int RECORD_LENGTH_OFFSET = 12;
+    static final int LOGP_OFFSET = 20;
+    static final int INTERVAL_COUNT_OFFSET = 28;
+    static final int INDEX_POSITION_OFFSET = 32;
+    static final int RECORD_HEADER_BYTES = 40;
+
+    // Size of each mapped region of the file.
+    static final long CHUNK_BYTES = 64L << 20;
+
+    /**
+     * Per-thread buffer of the simulation events of the particles
+     * propagated by that thread over the current interval.
+     */
+    public static class Buffer {
+        int[] reactions = new int[1024];
+        double[] times = new double[1024];
+        long[] multiplicities = new long[1024];
+        int size;
+
+        // Particles propagated and the range of events belonging to each
+        int[] particles = new int[64];
+        int[] particleEnds = new int[64];
+        int nParticles;
+
+        void startParticle(int p) {
+            if (nParticles == particles.length) {
+                particles = Arrays.copyOf(particles, 2*nParticles);
+                particleEnds = Arrays.copyOf(particleEnds, 2*nParticles);
+            }
+            particles[nParticles] = p;
+            particleEnds[nParticles] = size;
+            nParticles += 1;
+        }
+
+        void endParticle() {
+            particleEnds[nParticles-1] = size;
+        }
+
+        void add(int reaction, double time, long multiplicity) {
+            if (size == reactions.length) {
+                reactions = Arrays.copyOf(reactions, 2*size);
+                times = Arrays.copyOf(times, 2*size);
+                multiplicities = Arrays.copyOf(multiplicities, 2*size);
+            }
+            reactions[size] = reaction;
+            times[size] = time;
+            multiplicities[size] = multiplicity;
+            size += 1;
+        }
+
+        void clear() {
+            size = 0;
+            nParticles = 0;
+        }
+    }
+
+    int recordEvery;
+    long evaluation;
+
+    RandomAccessFile file;
+    FileChannel channel;
+    MappedByteBuffer buffer;
+    long bufferStart;
+
+    long recordStart;
+    long[] intervalPositions = new long[64];
+    int nIntervals;
+
+    // True if the latest record has not yet been accepted or discarded.
+    boolean pending;
+    long nRecords;
+
+    // Closes the file should the JVM exit while it is open.
+    Thread shutdownHook;
+
+    @Override
+    public void initAndValidate() throws Exception {
+        recordEvery = recordEveryInput.get();
+    }
+
+    /**
+     * Open the output file and write the file header.  Any file left open
+     * by a previous call is closed first, and its records discarded.
+     *
+     * @param model model whose reactions are recorded
+     * @throws IOException
+     */
+    synchronized void open(Model model) throws IOException {
+        close();
+
+        file = new RandomAccessFile(fileNameInput.get(), "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+        bufferStart = 0;
+        buffer = null;
+        evaluation = 0;
+        pending = false;
+        nRecords = 0;
+
+        ensureCapacity(HEADER_BYTES);
+        buffer.putInt(FILE_MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(model.getReactions().size());
+
+        shutdownHook = new Thread(() -> {
+            try {
+                close();
+            } catch (IOException ex) {
+                Log.warning.println("Error closing trajectory file: "
+                    + ex.getMessage());
+            }
+        });
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    /**
+     * Count an evaluation, and determine whether it should be recorded.
+     *
+     * @return true if the evaluation should be recorded
+     */
+    boolean startEvaluation() throws IOException {
+        accept();
+
+        evaluation += 1;
+        if (evaluation % recordEvery != 0)
+            return false;
+
+        recordStart = getPosition();
+        nIntervals = 0;
+
+        ensureCapacity(RECORD_HEADER_BYTES);
+        buffer.putInt(RECORD_MAGIC);
+        buffer.putLong(evaluation);
+        buffer.putLong(0L);
+        buffer.putDouble(0.0);
+        buffer.putInt(0);
+        buffer.putLong(0L);
+
+        return true;
+    }
+
+    /**
+     * Write the events of all particles over an interval, and the
+     * ancestors chosen by any subsequent resampling, clearing the
+     * buffers.
+     *
+     * @param nodeNr number of tree node at the end of the interval
+     * @param startTime time at the start of the interval
+     * @param endTime time at the end of the interval
+     * @param nParticles number of particles
+     * @param buffers per-thread buffers, in particle order
+     * @param ancestors ancestors of particles following resampling, or
+     *                  null if no resampling took place
+     * @throws IOException
+     */
+    void writeInterval(int nodeNr, double startTime, double endTime,
+        int nParticles, Buffer[] buffers, int[] ancestors) throws IOException {
+
+        if (nIntervals == intervalPositions.length)
+            intervalPositions = Arrays.copyOf(intervalPositions, 2*nIntervals);
+        intervalPositions[nIntervals++] = getPosition();
+
+        ensureCapacity(4 + 8 + 8 + 4 + 4*nParticles);
+        buffer.putInt(nodeNr);
+        buffer.putDouble(startTime);
+        buffer.putDouble(endTime);
+        buffer.putInt(nParticles);
+
+        for (Buffer buf : buffers) {
+            int start = 0;
+            for (int i=0; i<buf.nParticles; i++) {
+                buffer.putInt(buf.particleEnds[i] - start);
+                start = buf.particleEnds[i];
+            }
+        }
+
+        for (Buffer buf : buffers) {
+            for (int e=0; e<buf.size; e++) {
+                ensureCapacity(EVENT_BYTES);
+                buffer.putInt(buf.reactions[e]);
+                buffer.putDouble(buf.times[e]);
+                buffer.putLong(buf.multiplicities[e]);
+            }
+            buf.clear();
+        }
+
+        if (ancestors != null) {
+            ensureCapacity(1 + 4*nParticles);
+            buffer.put((byte)1);
+            for (int p=0; p<nParticles; p++)
+                buffer.putInt(ancestors[p]);
+        } else {
+            ensureCapacity(1);
+            buffer.put((byte)0);
+        }
+    }
+
+    /**
+     * Complete the current record.
+     *
+     * @param logP log likelihood estimate of the evaluation
+     * @throws IOException
+     */
+    void endEvaluation(double logP) throws IOException {
+        long indexPosition = getPosition();
+        ensureCapacity(8*nIntervals);
+        for (int i=0; i<nIntervals; i++)
+            buffer.putLong(intervalPositions[i]);
+
+        long recordLength = getPosition() - recordStart;
+
+        ByteBuffer patch = ByteBuffer.allocate(RECORD_HEADER_BYTES - RECORD_LENGTH_OFFSET);
+        patch.putLong(recordLength);
+        patch.putDouble(logP);
+        patch.putInt(nIntervals);
+        patch.putLong(indexPosition);
+        patch.flip();
+        channel.write(patch, recordStart + RECORD_LENGTH_OFFSET);
+
+        pending = true;
+    }
+
+    /**
+     * Keep the latest record, following acceptance of the state it was
+     * recorded for.
+     */
+    void accept() {
+        if (pending) {
+            pending = false;
+            nRecords += 1;
+        }
+    }
+
+    /**
+     * Discard the latest record, following rejection of the state it was
+     * recorded for.  Subsequent records overwrite it.
+     */
+    void discard() {
+        if (!pending)
+            return;
+
+        if (buffer != null && recordStart >= bufferStart)
+            buffer.position((int)(recordStart - bufferStart));
+        else {
+            bufferStart = recordStart;
+            buffer = null;
+        }
+        pending = false;
+    }
+
+    /**
+     * Truncate the file to the data written and close it, removing the
+     * shutdown hook registered when it was opened.
+     *
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException {
+        if (shutdownHook != null && Thread.currentThread() != shutdownHook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException ex) {
+                // JVM is already shutting down: the hook will close the
+                // file should this call not have done so.
+            }
+        }
+        shutdownHook = null;
+
+        if (channel == null)
+            return;
+
+        long length = getPosition();
+        if (buffer != null)
+            buffer.force();
+        buffer = null;
+        channel.truncate(length);
+        file.close();
+        channel = null;
+    }
+
+    @Override
+    public void init(PrintStream out) throws Exception {
+        String prefix = getID() != null ? getID() + "." : "";
+        out.print(prefix + "records\t");
+    }
+
+    @Override
+    public void log(int nSample, PrintStream out) {
+        out.print(nRecords + (pending ? 1 : 0) + "\t");
+    }
+
+    @Override
+    public void close(PrintStream out) {
+        try {
+            close();
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private long getPosition() {
+        return buffer == null ? bufferStart : bufferStart + buffer.position();
+    }
+
+    /**
+     * Ensure the mapped region has room for the given number of bytes,
+     * mapping a new region beginning at the current position if not.
+     *
+     * @param bytes number of bytes required
+     * @throws IOException
+     */
+    private void ensureCapacity(long bytes) throws IOException {
+        if (buffer != null && buffer.remaining() >= bytes)
+            return;
+
+        bufferStart = getPosition();
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, bufferStart,
+            Math.max(CHUNK_BYTES, bytes));
+    }
+}
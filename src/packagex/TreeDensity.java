@@ -19,17 +19,25 @@ package packagex;
 import beast.core.Distribution;
 import beast.core.Input;
 import beast.core.Input.Validate;
+import beast.core.Operator;
 import beast.core.State;
+import beast.core.util.Log;
 import beast.evolution.tree.Node;
 import beast.util.Randomizer;
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.Lists;
-import com.google.common.collect.Multimap;
 import com.google.common.collect.Multiset;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ObjIntConsumer;
 
 /**
  * Computes the probability density of the given tree under the chosen model.
@@ -48,6 +56,99 @@ public class TreeDensity extends Distribution {
         "nParticles", "Number of particles to use in SMC calculation.",
         Validate.REQUIRED);
 
+    public Input<ParticlePropagator> propagatorInput = new Input<>(
+        "propagator", "Algorithm used to propagate particles between tree "
+            + "events. (Default Gillespie's direct method.)");
+
+    public Input<Resampler.Scheme> resamplingSchemeInput = new Input<>(
+        "resamplingScheme", "Particle resampling scheme: MULTINOMIAL, "
+            + "STRATIFIED, SYSTEMATIC or RESIDUAL. (Default SYSTEMATIC.)",
+        Resampler.Scheme.SYSTEMATIC, Resampler.Scheme.values());
+
+    public Input<Double> essThresholdInput = new Input<>("essThreshold",
+        "Particles are resampled only when the effective sample size falls "
+            + "below this fraction of the number of particles. (Default 0.5.)",
+        0.5);
+
+    public Input<Boolean> lookaheadInput = new Input<>("lookahead",
+        "Use an auxiliary particle filter, in which particles are resampled "
+            + "according to weights anticipating the reaction at the next "
+            + "tree event, so that fewer particles are wasted on states in "
+            + "which that event is unlikely. (Default false.)", false);
+
+    public Input<Integer> nThreadsInput = new Input<>("threads",
+        "Number of threads used to propagate particles. (Default 1.)", 1);
+
+    public Input<Integer> checkpointIntervalInput = new Input<>(
+        "checkpointInterval",
+        "Save the particle population every this many tree intervals, "
+            + "allowing filtering to resume from the last checkpoint "
+            + "preceding any change to the tree. (Default 0, disabled.)", 0);
+
+    public Input<AuxiliaryRandomNumbers> auxInput = new Input<>(
+        "auxiliaryRandomNumbers",
+        "Auxiliary random numbers from which the filter draws its randomness. "
+            + "When these are part of the state and perturbed using a "
+            + "CrankNicolsonOperator, successive likelihood estimates are "
+            + "correlated (correlated pseudo-marginal MCMC).");
+
+    public Input<Integer> auxBlockSizeInput = new Input<>(
+        "auxiliaryBlockSize",
+        "Number of auxiliary variables available to each particle in each "
+            + "interval, and to resampling following each interval. "
+            + "(Default 16.)", 16);
+
+    public Input<TrajectoryRecorder> trajectoryRecorderInput = new Input<>(
+        "trajectoryRecorder",
+        "Records the particle trajectories simulated by the filter.");
+
+    public Input<ReferenceTrajectory> referenceTrajectoryInput = new Input<>(
+        "referenceTrajectory",
+        "Population trajectory for particle Gibbs inference.  When given, "
+            + "the density computed is the joint density of the tree and "
+            + "this trajectory, and the particle filter is used only by "
+            + "ParticleGibbsOperator to draw new trajectories using "
+            + "conditional SMC.  Particles are then always resampled "
+            + "multinomially.");
+
+    public Input<Boolean> ancestorSamplingInput = new Input<>(
+        "ancestorSampling",
+        "Use ancestor sampling when drawing reference trajectories with "
+            + "conditional SMC. (Default true.)", true);
+
+    public Input<Boolean> adaptParticleCountInput = new Input<>(
+        "adaptParticleCount",
+        "Adjust the number of particles after each of the first "
+            + "adaptationEvaluations evaluations so that the estimated "
+            + "variance of the log likelihood estimate approaches "
+            + "targetLogPVariance.  The number of particles is fixed "
+            + "thereafter: the chain only targets the posterior once "
+            + "adaptation has stopped, so these evaluations must fall "
+            + "within the discarded burn-in. (Default false.)", false);
+
+    public Input<Integer> adaptationEvaluationsInput = new Input<>(
+        "adaptationEvaluations",
+        "Number of evaluations after which the particle count is adapted "
+            + "when adaptParticleCount is set. (Default 100.)", 100);
+
+    public Input<Integer> pilotRunsInput = new Input<>("pilotRuns",
+        "Number of pilot runs of the filter used to choose the number of "
+            + "particles before the first evaluation. (Default 0, no pilot "
+            + "runs.)", 0);
+
+    public Input<Double> targetLogPVarianceInput = new Input<>(
+        "targetLogPVariance",
+        "Target variance of the log likelihood estimate used when choosing "
+            + "the number of particles. (Default 1.0.)", 1.0);
+
+    public Input<Integer> minParticlesInput = new Input<>("minParticles",
+        "Minimum number of particles chosen by adaptation. (Default 10.)",
+        10);
+
+    public Input<Integer> maxParticlesInput = new Input<>("maxParticles",
+        "Maximum number of particles chosen by adaptation. (Default 100000.)",
+        100000);
+
     /**
      * Tolerance used when comparing times.
      */
@@ -65,165 +166,1293 @@ public class TreeDensity extends Distribution {
         return Math.abs(a.getHeight()-b.getHeight()) < TOLERANCE;
     }
 
-    private class ParticleState extends SystemState {
-        public Multimap<Type, ReactionNode> lineageTypes = HashMultimap.create();
+    Model model;
+    ReactionTree tree;
+    int nParticles;
+    ParticlePropagator propagator;
+    Resampler resampler;
+    double essThreshold;
 
-        public ParticleState() { }
+    int nThreads;
+    ExecutorService executor;
+    static final long WORKER_KEEP_ALIVE_SECONDS = 60;
+    List<Callable<Object>> propagationTasks;
+    ParticlePropagator.Workspace[] workspaces;
 
-        public ParticleState(SystemState state) {
-            stateMap.putAll(state.stateMap);
-        }
+    // Randomness used by the filter itself (resampling), and the seed
+    // from which per-particle propagation streams are derived.
+    RandomStream filterRNG = new RandomStream(0);
+    long filterSeed;
 
-        public void assignFrom(ParticleState other) {
-            stateMap.clear();
-            stateMap.putAll(other.stateMap);
+    // Particle states are reused across likelihood evaluations, with
+    // their storage drawn from a common pool.
+    ParticleState.Pool statePool;
+    ParticleState[] particleStates, particleStatesNew;
+    double[] particleLogWeights, particleWeights;
+    int[] ancestors;
 
-            lineageTypes.clear();
-            lineageTypes.putAll(other.lineageTypes);
-        }
-    }
+    // Lookahead (auxiliary particle filter) log weights for the next
+    // tree event.
+    boolean lookahead;
+    double[] particleLookaheads;
 
-    Model model;
-    ReactionTree tree;
-    int nParticles;
+    // Particle filter metrics, null unless enabled, and those of the
+    // evaluation which produced the current state.  The metrics of the
+    // latest evaluation are pending until that evaluation is accepted.
+    FilterMetrics metrics, acceptedMetrics;
+    boolean metricsPending;
+
+    // Trajectory recorder and per-thread event buffers.
+    TrajectoryRecorder recorder;
+    TrajectoryRecorder.Buffer[] trajectoryBuffers;
+    boolean recordingTrajectories;
+
+    // Reference trajectory and filter history used in particle Gibbs
+    // mode.  The reference trajectory is carried by particle REFERENCE.
+    static final int REFERENCE = 0;
+    ReferenceTrajectory reference;
+    ParticleState referenceState;
+    ParticleHistory history;
+    boolean ancestorSampling, conditioning, recordingHistory;
+    boolean referenceOperatorsChecked;
+
+    // Auxiliary random numbers used in correlated mode.
+    AuxiliaryRandomNumbers aux;
+    int auxBlockSize;
+    boolean auxOperatorsChecked;
+
+    // Particle count adaptation.  eves[p] is the index of the initial
+    // ancestor of particle p, from which the variance of the log
+    // likelihood estimate is estimated.
+    boolean adaptParticleCount;
+    int adaptationEvaluations, nEvaluations, nVarianceEstimates;
+    double varianceEstimateSum;
+    int pilotRuns, minParticles, maxParticles;
+    double targetLogPVariance, logPVariance;
+    int[] eves, evesNew;
+    double[] eveWeights;
+    int nResamplings;
+
+    // Tree events, model parameters and checkpoints of the current and
+    // stored evaluations.
+    int checkpointInterval;
+    FilterRecord record, storedRecord;
+    double[] modelParams;
+
+    // Interval currently being propagated, read by propagation tasks.
+    ParticleState[] intervalStates;
+    double[] intervalLogWeights;
+    double intervalStartTime, intervalEndTime;
+    Node intervalNode;
+    int intervalIdx;
+
+    // Prepares the random stream of a particle in the current interval.
+    final ObjIntConsumer<RandomStream> streamSetter =
+        (rng, p) -> setStream(rng, intervalIdx, p);
 
     @Override
     public void initAndValidate() throws Exception {
         model = modelInput.get();
         tree = treeInput.get();
         nParticles = nParticlesInput.get();
+
+        if (propagatorInput.get() != null)
+            propagator = propagatorInput.get();
+        else
+            propagator = new DirectPropagator();
+
+        essThreshold = essThresholdInput.get();
+        lookahead = lookaheadInput.get();
+        checkpointInterval = checkpointIntervalInput.get();
+        modelParams = new double[model.getParameterCount()];
+
+        adaptParticleCount = adaptParticleCountInput.get();
+        adaptationEvaluations = adaptationEvaluationsInput.get();
+        nEvaluations = 0;
+        nVarianceEstimates = 0;
+        varianceEstimateSum = 0.0;
+        pilotRuns = pilotRunsInput.get();
+        targetLogPVariance = targetLogPVarianceInput.get();
+        minParticles = minParticlesInput.get();
+        maxParticles = maxParticlesInput.get();
+
+        reference = referenceTrajectoryInput.get();
+        ancestorSampling = ancestorSamplingInput.get();
+        if (reference != null) {
+            if (adaptParticleCount || pilotRuns > 0 || auxInput.get() != null)
+                throw new IllegalArgumentException("Particle Gibbs cannot be "
+                    + "used with particle count adaptation or auxiliary "
+                    + "random numbers.");
+
+            if (!propagator.isExact())
+                throw new IllegalArgumentException("Particle Gibbs requires "
+                    + "an exact propagator.");
+
+            reference.checkOperators();
+        }
+
+        statePool = new ParticleState.Pool(model.getTypeCount(),
+            tree.getNodeCount());
+        setParticleCount(nParticles);
+
+        aux = auxInput.get();
+        if (aux != null) {
+            if (adaptParticleCount || pilotRuns > 0)
+                throw new IllegalArgumentException("Particle count adaptation "
+                    + "cannot be used with auxiliary random numbers.");
+
+            auxBlockSize = auxBlockSizeInput.get();
+            aux.setBlocks(tree.getNodeCount(), (nParticles+1)*auxBlockSize);
+            aux.checkOperators();
+        }
+
+        nThreads = Math.max(1, Math.min(nThreadsInput.get(), nParticles));
+        workspaces = new ParticlePropagator.Workspace[nThreads];
+        for (int w=0; w<nThreads; w++)
+            workspaces[w] = propagator.createWorkspace(model);
+
+        // Stop the workers of any previous initialisation.
+        close();
+
+        if (nThreads > 1) {
+            // Idle workers time out, so that the pool does not outlive
+            // this density should close() never be called.
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(nThreads,
+                nThreads, WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread thread = new Thread(r, "TreeDensity worker");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            pool.allowCoreThreadTimeOut(true);
+            executor = pool;
+
+            propagationTasks = new ArrayList<>();
+            for (int w=0; w<nThreads; w++) {
+                final int worker = w;
+                propagationTasks.add(() -> {
+                    propagateRange(worker,
+                        worker*nParticles/nThreads,
+                        (worker+1)*nParticles/nThreads);
+                    return null;
+                });
+            }
+        }
+
+        recorder = trajectoryRecorderInput.get();
+        if (recorder != null)
+            recorder.open(model);
+
+        if (recorder != null || reference != null) {
+            trajectoryBuffers = new TrajectoryRecorder.Buffer[nThreads];
+            for (int w=0; w<nThreads; w++)
+                trajectoryBuffers[w] = new TrajectoryRecorder.Buffer();
+        }
+
+        // An empty reference trajectory is initialised using the
+        // unconditional filter.
+        if (reference != null) {
+            referenceState = new ParticleState(model.getTypeCount(),
+                tree.getNodeCount());
+            history = new ParticleHistory();
+            if (reference.getEventCount() == 0)
+                drawReferenceTrajectory(false);
+        }
+    }
+
+    /**
+     * Allocate particle states, weights and checkpoints for the given
+     * number of particles.  Existing checkpoints are discarded.
+     *
+     * @param newParticleCount number of particles
+     */
+    private void setParticleCount(int newParticleCount) {
+        if (particleStates != null) {
+            for (int p=0; p<nParticles; p++) {
+                particleStates[p].release();
+                particleStatesNew[p].release();
+            }
+            record.release();
+            storedRecord.release();
+        }
+
+        nParticles = newParticleCount;
+
+        particleStates = new ParticleState[nParticles];
+        particleStatesNew = new ParticleState[nParticles];
+        for (int p=0; p<nParticles; p++) {
+            particleStates[p] = new ParticleState(statePool);
+            particleStatesNew[p] = new ParticleState(statePool);
+        }
+        particleLogWeights = new double[nParticles];
+        particleWeights = new double[nParticles];
+        particleLookaheads = new double[nParticles];
+        ancestors = new int[nParticles];
+        eves = new int[nParticles];
+        evesNew = new int[nParticles];
+        eveWeights = new double[nParticles];
+
+        resampler = new Resampler(reference != null
+            ? Resampler.Scheme.MULTINOMIAL
+            : resamplingSchemeInput.get(), nParticles);
+
+        int nCheckpoints = checkpointInterval > 0
+            ? tree.getNodeCount()/checkpointInterval + 1
+            : 0;
+        record = new FilterRecord(tree.getNodeCount(),
+            model.getParameterCount(), nCheckpoints, statePool, nParticles);
+        storedRecord = new FilterRecord(tree.getNodeCount(),
+            model.getParameterCount(), nCheckpoints, statePool, nParticles);
+    }
+
+    /**
+     * Begin collecting particle filter metrics.
+     *
+     * @return metrics object, updated by each subsequent evaluation
+     */
+    public FilterMetrics enableMetrics() {
+        if (metrics == null) {
+            metrics = new FilterMetrics(tree.getNodeCount(),
+                model.getReactions().size());
+
+            for (ParticlePropagator.Workspace ws : workspaces)
+                ws.reactionCounts = new long[model.getReactions().size()];
+        }
+
+        return metrics;
+    }
+
+    /**
+     * @return particle filter metrics of the most recent evaluation, or
+     * null if not enabled
+     */
+    public FilterMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return particle filter metrics of the evaluation which produced
+     * the current state, excluding any rejected since, or null if not
+     * enabled
+     */
+    public FilterMetrics getAcceptedMetrics() {
+        if (metrics == null)
+            return null;
+
+        return metricsPending || acceptedMetrics == null
+            ? metrics
+            : acceptedMetrics;
+    }
+
+    /**
+     * @return number of particles currently used by the filter
+     */
+    public int getParticleCount() {
+        return nParticles;
+    }
+
+    /**
+     * @return estimated variance of the most recent log likelihood estimate
+     */
+    public double getLogPVarianceEstimate() {
+        return logPVariance;
+    }
+
+    /**
+     * Tree events, model parameters and particle checkpoints of a filter
+     * evaluation, used to identify the first interval affected by a
+     * change to the tree or model.
+     */
+    private static class FilterRecord {
+        int nEvents = -1;
+        final int[] eventNodes, eventChildren;
+        final double[] eventTimes;
+        final Reaction[] eventReactions;
+        final double[] modelParams;
+
+        // checkpoints[c] holds the population at the start of interval
+        // c*checkpointInterval.  (Element 0 is unused.)
+        final FilterCheckpoint[] checkpoints;
+        int nValidCheckpoints;
+
+        FilterRecord(int nNodes, int nModelParams, int nCheckpoints,
+            ParticleState.Pool pool, int nParticles) {
+            eventNodes = new int[nNodes];
+            eventChildren = new int[2*nNodes];
+            eventTimes = new double[nNodes];
+            eventReactions = new Reaction[nNodes];
+            modelParams = new double[nModelParams];
+
+            checkpoints = new FilterCheckpoint[nCheckpoints];
+            for (int c=1; c<nCheckpoints; c++)
+                checkpoints[c] = new FilterCheckpoint(pool, nParticles);
+        }
+
+        void assignFrom(FilterRecord other) {
+            nEvents = other.nEvents;
+            System.arraycopy(other.eventNodes, 0, eventNodes, 0, eventNodes.length);
+            System.arraycopy(other.eventChildren, 0, eventChildren, 0, eventChildren.length);
+            System.arraycopy(other.eventTimes, 0, eventTimes, 0, eventTimes.length);
+            System.arraycopy(other.eventReactions, 0, eventReactions, 0, eventReactions.length);
+            System.arraycopy(other.modelParams, 0, modelParams, 0, modelParams.length);
+
+            nValidCheckpoints = other.nValidCheckpoints;
+            for (int c=1; c<=nValidCheckpoints; c++)
+                checkpoints[c].assignFrom(other.checkpoints[c]);
+        }
+
+        void release() {
+            for (int c=1; c<checkpoints.length; c++)
+                checkpoints[c].release();
+        }
+    }
+
+    /**
+     * Record the current tree events and model parameters, returning the
+     * index of the first interval affected by any difference from those
+     * used in the previous evaluation.
+     *
+     * @return index of first affected interval
+     */
+    private int updateRecord() {
+        int nEvents = tree.getEventCount();
+        int firstDirty = record.nEvents < 0 ? 0 : nEvents;
+
+        model.getParameterValues(modelParams);
+        for (int i=0; i<modelParams.length; i++) {
+            if (modelParams[i] != record.modelParams[i]) {
+                record.modelParams[i] = modelParams[i];
+                firstDirty = 0;
+            }
+        }
+
+        if (record.nEvents != nEvents)
+            firstDirty = Math.min(firstDirty, Math.min(record.nEvents, nEvents));
+
+        for (int i=nEvents-1; i>=0; i--) {
+            Node node = tree.getEventNode(i);
+            int left = node.isLeaf() ? -1 : node.getChildren().get(0).getNr();
+            int right = node.getChildCount() < 2 ? -1 : node.getChildren().get(1).getNr();
+            double time = model.getNodeTime(node);
+            Reaction reaction = ((ReactionNode)node).getReaction();
+
+            if (record.eventNodes[i] != node.getNr()
+                || record.eventChildren[2*i] != left
+                || record.eventChildren[2*i+1] != right
+                || record.eventTimes[i] != time
+                || record.eventReactions[i] != reaction) {
+                record.eventNodes[i] = node.getNr();
+                record.eventChildren[2*i] = left;
+                record.eventChildren[2*i+1] = right;
+                record.eventTimes[i] = time;
+                record.eventReactions[i] = reaction;
+
+                firstDirty = Math.min(firstDirty, i);
+            }
+        }
+        record.nEvents = nEvents;
+
+        // Processing at the end of an interval depends on the following
+        // event (its lookahead weight, and whether it is contemporaneous),
+        // so the interval preceding the first changed event is also dirty.
+        return Math.max(0, firstDirty-1);
     }
 
     @Override
     public double calculateLogP() throws Exception {
-        logP = 0.0;
 
-        double[] particleWeights = new double[nParticles];
-        ParticleState[] particleStates = new ParticleState[nParticles];
-        ParticleState[] particleStatesNew = new ParticleState[nParticles];
+        if (reference != null) {
+            if (!referenceOperatorsChecked) {
+                reference.checkOperators();
+                referenceOperatorsChecked = true;
+            }
 
-        // Initialize particles
-        for (int p=0; p<nParticles; p++) {
-            particleStates[p] = new ParticleState(model.getInitialState());
-            particleStates[p].lineageTypes.put(model.getOriginType(),
-                (ReactionNode) tree.getRoot());
+            logP = getReferenceLogDensity();
+            return logP;
+        }
 
-            particleStatesNew[p] = new ParticleState();
+        // Bring tree event schedule up to date
+        tree.updateEventSchedule();
+
+        if (pilotRuns > 0) {
+            choosePilotParticleCount();
+            pilotRuns = 0;
         }
 
-        // Assemble sorted node list:
-        List<Node> nodeList = Lists.newArrayList(tree.getNodesAsArray());
-        nodeList.sort((Node o1, Node o2) -> {
-            return (int)(o1.getHeight() - o2.getHeight());
-        });
-        
-        double t = 0.0;
-        for (Node node : nodeList) {
+        // Operators may be initialised after this density, so check once
+        // more that nothing but CrankNicolsonOperator modifies aux.
+        if (aux != null && !auxOperatorsChecked) {
+            aux.checkOperators();
+            auxOperatorsChecked = true;
+        }
 
-            // Update particles
-            double sumOfWeights = 0.0;
-            for (int p=0; p<nParticles; p++) {
-                
-                double newWeight = updateParticle(particleStates[p], t, node);
-                
-                particleWeights[p] = newWeight;
-                sumOfWeights += newWeight;
-            }
-            
-            // Update marginal likelihood estimate
-            logP += Math.log(sumOfWeights/nParticles);
-            
-            if (!(sumOfWeights>0.0))
-                return Double.NEGATIVE_INFINITY;
-            
-            // Sample particle with replacement
-            for (int p=0; p<nParticles; p++) {
-                double u = Randomizer.nextDouble()*sumOfWeights;
-                
-                int pChoice;
-                for (pChoice = 0; pChoice<nParticles; pChoice++) {
-                    u -= particleWeights[pChoice];
-                    if (u<0.0)
-                        break;
+        // Trajectories are only recorded for complete runs of the filter.
+        recordingTrajectories = recorder != null && recorder.startEvaluation();
+        if (recordingTrajectories) {
+            record.nEvents = -1;
+            for (int w=0; w<nThreads; w++) {
+                trajectoryBuffers[w].clear();
+                workspaces[w].trajectory = trajectoryBuffers[w];
+            }
+        }
+
+        logP = runFilter(aux != null ? aux.getSeed() : Randomizer.nextLong());
+
+        if (metrics != null) {
+            metrics.endEvaluation(logP);
+            metricsPending = true;
+        }
+
+        if (recordingTrajectories) {
+            recorder.endEvaluation(logP);
+            for (int w=0; w<nThreads; w++)
+                workspaces[w].trajectory = null;
+            recordingTrajectories = false;
+        }
+
+        // Choose number of particles for next evaluation.  Variance of the
+        // log likelihood estimate is approximately inversely proportional
+        // to the number of particles.  Where the genealogy has degenerated
+        // the variance cannot be estimated, and the count is doubled.
+        if (adaptParticleCount && nEvaluations < adaptationEvaluations) {
+            nEvaluations += 1;
+
+            if (logP > Double.NEGATIVE_INFINITY) {
+                int newParticleCount;
+                if (logPVariance < Double.POSITIVE_INFINITY) {
+                    varianceEstimateSum += nParticles*logPVariance;
+                    nVarianceEstimates += 1;
+                    newParticleCount = getRequiredParticleCount(
+                        nParticles*logPVariance);
+                } else
+                    newParticleCount = Math.min(maxParticles, 2*nParticles);
+
+                if (Math.abs(newParticleCount - nParticles) > 0.2*nParticles)
+                    setParticleCount(newParticleCount);
+            }
+
+            if (nEvaluations == adaptationEvaluations)
+                freezeParticleCount();
+        }
+
+        return logP;
+    }
+
+    /**
+     * Run the filter pilotRuns times at the current tree and model
+     * parameters, and choose the number of particles from the sample
+     * variance of the resulting log likelihood estimates.
+     *
+     * @throws Exception
+     */
+    private void choosePilotParticleCount() throws Exception {
+        double sum = 0.0, sumSq = 0.0;
+        int n = 0;
+
+        for (int run=0; run<pilotRuns; run++) {
+            // Force a full run of the filter.
+            record.nEvents = -1;
+
+            double pilotLogP = runFilter(Randomizer.nextLong());
+            if (pilotLogP > Double.NEGATIVE_INFINITY) {
+                sum += pilotLogP;
+                sumSq += pilotLogP*pilotLogP;
+                n += 1;
+            }
+        }
+
+        if (n < 2)
+            return;
+
+        double variance = (sumSq - sum*sum/n)/(n-1);
+        int newParticleCount = getRequiredParticleCount(nParticles*variance);
+        if (newParticleCount != nParticles)
+            setParticleCount(newParticleCount);
+
+        Log.info.println("TreeDensity: log likelihood variance " + variance
+            + " from " + n + " pilot runs; using " + nParticles
+            + " particles.");
+    }
+
+    /**
+     * Choose the final particle count from the variance estimates of all
+     * adaptation evaluations, rather than from the last alone.  Should
+     * the genealogy have degenerated in most of these evaluations, the
+     * remaining estimates are unrepresentative and the current count is
+     * kept.
+     */
+    private void freezeParticleCount() {
+        if (2*nVarianceEstimates >= nEvaluations) {
+            int newParticleCount = getRequiredParticleCount(
+                varianceEstimateSum/nVarianceEstimates);
+            if (newParticleCount != nParticles)
+                setParticleCount(newParticleCount);
+        }
+
+        Log.info.println("TreeDensity: particle count fixed at "
+            + nParticles + " after " + nEvaluations + " evaluations.");
+    }
+
+    /**
+     * @param unitVariance log likelihood variance multiplied by the
+     *                     number of particles used to estimate it
+     * @return particle count expected to achieve targetLogPVariance
+     */
+    private int getRequiredParticleCount(double unitVariance) {
+        double required = Math.ceil(unitVariance/targetLogPVariance);
+        return (int)Math.max(minParticles, Math.min(maxParticles, required));
+    }
+
+    /**
+     * Evaluate the density of a different tree, using the given seed.
+     * Checkpoints, pilot runs and particle count adaptation are bypassed.
+     * Used by TreeDensityBatch to reuse one filter across many trees.  The
+     * event schedule of newTree must already be up to date, allowing the
+     * tree to be shared between filters.
+     *
+     * @param newTree tree to evaluate
+     * @param seed seed from which the filter's randomness is derived
+     * @return log likelihood estimate
+     * @throws Exception
+     */
+    double calculateLogP(ReactionTree newTree, long seed) throws Exception {
+        setTree(newTree);
+        record.nEvents = -1;
+
+        logP = runFilter(seed);
+
+        if (metrics != null)
+            metrics.endEvaluation(logP);
+
+        return logP;
+    }
+
+    /**
+     * Switch to a different tree, reallocating particle storage only if
+     * the number of nodes differs.
+     *
+     * @param newTree new tree
+     */
+    private void setTree(ReactionTree newTree) {
+        if (newTree == tree)
+            return;
+
+        boolean resize = newTree.getNodeCount() != tree.getNodeCount();
+        tree = newTree;
+        record.nEvents = -1;
+        storedRecord.nEvents = -1;
+
+        if (resize) {
+            statePool = new ParticleState.Pool(model.getTypeCount(),
+                tree.getNodeCount());
+            setParticleCount(nParticles);
+
+            if (metrics != null) {
+                metrics = new FilterMetrics(tree.getNodeCount(),
+                    model.getReactions().size());
+                acceptedMetrics = null;
+                metricsPending = false;
+            }
+        }
+    }
+
+    /**
+     * Run the particle filter, resuming from a checkpoint if possible.
+     *
+     * @param seed seed from which the filter's randomness is derived
+     * @return log likelihood estimate
+     * @throws Exception
+     */
+    private double runFilter(long seed) throws Exception {
+        double logP;
+
+        filterSeed = seed;
+
+        if (metrics != null)
+            metrics.startEvaluation();
+
+        // Identify the latest checkpoint preceding any change
+        int firstDirty = updateRecord();
+        if (aux != null && aux.somethingIsDirty())
+            firstDirty = Math.min(firstDirty, aux.getFirstDirtyBlock());
+        int resumeCheckpoint = checkpointInterval > 0
+            ? Math.min(firstDirty/checkpointInterval, record.nValidCheckpoints)
+            : 0;
+        record.nValidCheckpoints = resumeCheckpoint;
+
+        int startInterval;
+        double t;
+        if (resumeCheckpoint > 0) {
+            FilterCheckpoint checkpoint = record.checkpoints[resumeCheckpoint];
+            checkpoint.load(particleStates, particleLogWeights, eves);
+            for (int p=0; p<nParticles; p++)
+                particleStatesNew[p].release();
+
+            for (int p=0; p<nParticles; p++)
+                particleWeights[p] = Math.exp(particleLogWeights[p]);
+
+            logP = checkpoint.logP;
+            nResamplings = checkpoint.nResamplings;
+            t = checkpoint.startTime;
+            startInterval = resumeCheckpoint*checkpointInterval;
+        } else {
+            initializeParticles();
+
+            logP = 0.0;
+            nResamplings = 0;
+            t = 0.0;
+            startInterval = 0;
+
+            if (lookahead && tree.getEventCount() > 0)
+                logP += applyLookahead(0);
+        }
+
+        // Contemporaneous tree events form a single interval: the events
+        // following the first of a group are incorporated without further
+        // propagation, and weights are normalised and particles resampled
+        // only once the whole group has been incorporated.
+        for (int interval=startInterval; interval<tree.getEventCount(); interval++) {
+            Node node = tree.getEventNode(interval);
+            boolean groupStart = tree.getEventGroupStart(interval) == interval;
+            double endTime = groupStart ? model.getNodeTime(node) : t;
+
+            // Save checkpoint
+            if (checkpointInterval > 0 && interval % checkpointInterval == 0
+                && interval/checkpointInterval > record.nValidCheckpoints) {
+                record.nValidCheckpoints = interval/checkpointInterval;
+                record.checkpoints[record.nValidCheckpoints].save(
+                    particleStates, particleLogWeights, eves, nResamplings,
+                    logP, t);
+            }
+
+            // Update particles.  Log weights are normalised so that the
+            // weights sum to one at the start of each group.
+            if (lookahead && groupStart)
+                computeLookahead(interval);
+
+            // Draw this interval's auxiliary variables (if necessary)
+            // before particles are propagated concurrently.
+            if (aux != null)
+                aux.getBlock(interval);
+
+            propagateParticles(particleStates, particleLogWeights, t, endTime,
+                node, interval);
+
+            // Remove the lookahead weights under which particles were
+            // selected for this group.
+            if (lookahead && groupStart) {
+                for (int p=0; p<nParticles; p++)
+                    particleLogWeights[p] -= particleLookaheads[p];
+            }
+
+            boolean resampled = false;
+            if (tree.isEventGroupEnd(interval)) {
+                double logSumOfWeights = logSumExp(particleLogWeights);
+
+                // Update marginal likelihood estimate
+                logP += logSumOfWeights;
+
+                if (!(logSumOfWeights>Double.NEGATIVE_INFINITY)) {
+                    logPVariance = Double.POSITIVE_INFINITY;
+                    return Double.NEGATIVE_INFINITY;
                 }
-                
-                particleStatesNew[p].assignFrom(particleStates[pChoice]);
-            }
-            
-            // Switch particleStates and particleStatesNew
-            ParticleState[] temp = particleStates;
-            particleStates = particleStatesNew;
-            particleStatesNew = temp;
+
+                for (int p=0; p<nParticles; p++) {
+                    particleLogWeights[p] -= logSumOfWeights;
+                    particleWeights[p] = Math.exp(particleLogWeights[p]);
+                }
+
+                // Anticipate the first event of the next group, so that
+                // resampling favours particles in which it is likely.
+                if (lookahead && interval+1 < tree.getEventCount())
+                    logP += applyLookahead(interval+1);
+
+                // Resample particles if weights have become too uneven
+                double ess = Resampler.getESS(particleWeights);
+                if (metrics != null)
+                    metrics.addESS(ess);
+
+                resampled = ess < essThreshold*nParticles;
+                if (resampled)
+                    resampleParticles(interval);
+            }
+
+            if (recordingHistory) {
+                history.addInterval(trajectoryBuffers,
+                    resampled ? ancestors : null);
+                for (TrajectoryRecorder.Buffer buf : trajectoryBuffers)
+                    buf.clear();
+            }
+
+            if (recordingTrajectories)
+                recorder.writeInterval(node.getNr(), t, endTime, nParticles,
+                    trajectoryBuffers, resampled ? ancestors : null);
           
             // Update start interval time
-            t = model.getNodeTime(node);
+            t = endTime;
         } 
 
+        logPVariance = getGenealogyLogPVariance();
+
         return logP;
     }
 
+    /**
+     * Resample particles according to their normalised weights, following
+     * the given interval.
+     *
+     * @param interval index of interval
+     */
+    private void resampleParticles(int interval) {
+        long resampleStart = metrics != null ? System.nanoTime() : 0;
+
+        setStream(filterRNG, interval, nParticles);
+        resampler.resample(particleWeights, 1.0, ancestors, filterRNG);
+
+        // Under conditional SMC only the other particles are
+        // resampled.  Discarding one of the N independent draws
+        // at random leaves N-1 independent draws.
+        if (conditioning) {
+            int discard = filterRNG.nextInt(nParticles);
+            ancestors[discard] = ancestors[REFERENCE];
+            ancestors[REFERENCE] = ancestorSampling
+                ? sampleReferenceAncestor()
+                : REFERENCE;
+        }
+
+        // (Offspring share their ancestor's storage until they
+        // are next modified.)
+        for (int p=0; p<nParticles; p++) {
+            particleStatesNew[p].assignFrom(particleStates[ancestors[p]]);
+            particleLogWeights[p] = -Math.log(nParticles);
+            particleWeights[p] = 1.0/nParticles;
+            evesNew[p] = eves[ancestors[p]];
+        }
+
+        int[] tempEves = eves;
+        eves = evesNew;
+        evesNew = tempEves;
+        nResamplings += 1;
+
+        for (int p=0; p<nParticles; p++)
+            particleStates[p].release();
+
+        // Switch particleStates and particleStatesNew
+        ParticleState[] temp = particleStates;
+        particleStates = particleStatesNew;
+        particleStatesNew = temp;
+
+        if (metrics != null) {
+            metrics.resamplings += 1;
+            metrics.resamplingNanos += System.nanoTime() - resampleStart;
+        }
+    }
+
+    /**
+     * Estimate the variance of the log likelihood estimate from the
+     * genealogy of the final particles, following Lee and Whiteley
+     * (2018).  Unlike the spread of the weights within each interval,
+     * this accounts for the dependence between intervals introduced by
+     * resampling.  The relative variance of the likelihood estimate is
+     *
+     *   1 - (N/(N-1))^(n+1) sum_{i,j: E_i != E_j} W_i W_j
+     *
+     * where n is the number of resampling steps, W_i the normalised final
+     * weights and E_i the index of the initial ancestor of particle i.
+     *
+     * When the number of resampling steps is large compared to N, the
+     * genealogy degenerates: all particles may descend from a single
+     * initial ancestor, or the estimate may become negative.  Neither
+     * says anything about the variance, except that it is large.
+     *
+     * @return estimated variance of log likelihood estimate, or positive
+     * infinity if the genealogy has degenerated
+     */
+    private double getGenealogyLogPVariance() {
+        Arrays.fill(eveWeights, 0.0);
+        for (int p=0; p<nParticles; p++)
+            eveWeights[eves[p]] += particleWeights[p];
+
+        double sumSq = 0.0;
+        int nEves = 0;
+        for (int e=0; e<nParticles; e++) {
+            if (eveWeights[e] > 0.0) {
+                sumSq += eveWeights[e]*eveWeights[e];
+                nEves += 1;
+            }
+        }
+
+        if (nEves < 2)
+            return Double.POSITIVE_INFINITY;
+
+        double relVariance = 1.0 - Math.pow(nParticles/(nParticles-1.0),
+            nResamplings+1)*(1.0 - sumSq);
+
+        if (relVariance < 0.0)
+            return Double.POSITIVE_INFINITY;
+
+        return Math.log1p(relVariance);
+    }
+
+    /**
+     * Place all particles in the initial model state, with the tree root
+     * lineage carried by an individual of the origin type.
+     */
+    private void initializeParticles() {
+
+        // All particles initially share the storage of the first.
+        ParticleState firstState = particleStates[0];
+        firstState.release();
+        firstState.assignFrom(model.getInitialState());
+        firstState.lineages.clear();
+        firstState.lineages.add(model.getOriginType().getIndex(),
+            tree.getRoot().getNr());
+
+        for (int p=0; p<nParticles; p++) {
+            particleStates[p].assignFrom(firstState);
+            particleStatesNew[p].release();
+            particleLogWeights[p] = -Math.log(nParticles);
+            particleWeights[p] = 1.0/nParticles;
+            eves[p] = p;
+        }
+    }
+
+    /**
+     * Compute the lookahead log weight of each particle for the event at
+     * the end of the given interval.  The lookahead weight is one plus
+     * the number of reactant permutations of the event's reaction in the
+     * particle's current state, i.e. (up to a constant factor) a
+     * defensive approximation of the reaction's propensity which never
+     * vanishes.  It depends only on the particle's state, so the weight
+     * applied at the end of one interval is recovered exactly at the
+     * start of the next, even following resampling.
+     *
+     * @param interval index of interval
+     */
+    private void computeLookahead(int interval) {
+        Reaction reaction = ((ReactionNode)tree.getEventNode(interval)).getReaction();
+
+        for (int p=0; p<nParticles; p++) {
+            particleLookaheads[p] = reaction != null
+                ? Math.log1p(reaction.getReactantPermutations(particleStates[p]))
+                : 0.0;
+        }
+    }
+
+    /**
+     * Multiply the (normalised) particle weights by the lookahead weights
+     * for the event at the end of the given interval and renormalise.
+     *
+     * @param interval index of interval
+     * @return log of the sum of the weights prior to renormalisation
+     */
+    private double applyLookahead(int interval) {
+        computeLookahead(interval);
+
+        for (int p=0; p<nParticles; p++)
+            particleLogWeights[p] += particleLookaheads[p];
+
+        double logSumOfWeights = logSumExp(particleLogWeights);
+        for (int p=0; p<nParticles; p++) {
+            particleLogWeights[p] -= logSumOfWeights;
+            particleWeights[p] = Math.exp(particleLogWeights[p]);
+        }
+
+        return logSumOfWeights;
+    }
+
+    /**
+     * Compute log(sum_i exp(logValues[i])) without underflow.
+     *
+     * @param logValues logarithms of the values to sum
+     * @return logarithm of sum
+     */
+    public static double logSumExp(double[] logValues) {
+        double max = Double.NEGATIVE_INFINITY;
+        for (double logValue : logValues)
+            max = Math.max(max, logValue);
+
+        if (max == Double.NEGATIVE_INFINITY || max == Double.POSITIVE_INFINITY)
+            return max;
+
+        double sum = 0.0;
+        for (double logValue : logValues)
+            sum += Math.exp(logValue - max);
+
+        return max + Math.log(sum);
+    }
+
+    @Override
+    protected boolean requiresRecalculation() {
+        if (tree.somethingIsDirty() || (aux != null && aux.somethingIsDirty())
+            || (reference != null && reference.somethingIsDirty()))
+            return true;
+
+        model.getParameterValues(modelParams);
+        for (int i=0; i<modelParams.length; i++) {
+            if (modelParams[i] != record.modelParams[i])
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Stop the threads used to propagate particles.  Subsequent
+     * evaluations propagate all particles on the calling thread.
+     */
+    public void close() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    @Override
+    public void store() {
+        storedRecord.assignFrom(record);
+        if (recorder != null)
+            recorder.accept();
+        if (metricsPending) {
+            if (acceptedMetrics == null)
+                acceptedMetrics = metrics.snapshot();
+            else
+                acceptedMetrics.assignFrom(metrics);
+            metricsPending = false;
+        }
+        super.store();
+    }
+
+    @Override
+    public void restore() {
+        FilterRecord tmp = record;
+        record = storedRecord;
+        storedRecord = tmp;
+        if (recorder != null)
+            recorder.discard();
+        metricsPending = false;
+        super.restore();
+    }
+
+    /**
+     * Propagate all particles over an interval, adding the log of each
+     * particle's conditional probability to its log weight.  Each particle
+     * draws from its own random stream, seeded from filterSeed, the
+     * interval and the particle index, so the result does not depend on
+     * the number of threads.
+     *
+     * @param particleStates particle states at the start of the interval
+     * @param particleLogWeights particle log weights
+     * @param startTime time at the start of the interval
+     * @param endTime time at the end of the interval
+     * @param node tree node at the end of the interval
+     * @param interval index of interval
+     * @throws Exception 
+     */
+    private void propagateParticles(ParticleState[] particleStates,
+        double[] particleLogWeights, double startTime, double endTime, Node node,
+        int interval) throws Exception {
+
+        intervalStates = particleStates;
+        intervalLogWeights = particleLogWeights;
+        intervalStartTime = startTime;
+        intervalEndTime = endTime;
+        intervalNode = node;
+        intervalIdx = interval;
+
+        long propagateStart = metrics != null ? System.nanoTime() : 0;
+
+        if (executor == null) {
+            propagateRange(0, 0, nParticles);
+        } else {
+            for (Future<Object> future : executor.invokeAll(propagationTasks))
+                future.get();
+        }
+
+        if (metrics != null) {
+            metrics.propagationNanos += System.nanoTime() - propagateStart;
+            metrics.intervals += 1;
+            for (ParticlePropagator.Workspace ws : workspaces)
+                metrics.addEvents(interval, ws);
+        }
+    }
+
+    /**
+     * Propagate a contiguous range of particles over the current interval.
+     *
+     * @param worker index of workspace to use
+     * @param from index of first particle
+     * @param to index of last particle plus one
+     */
+    private void propagateRange(int worker, int from, int to) {
+        ParticlePropagator.Workspace ws = workspaces[worker];
+
+        // Unless trajectories are being recorded or the reference
+        // replayed (which happen one particle at a time), the propagator
+        // advances the whole range at once.
+        if (ws.trajectory == null && !conditioning) {
+            for (int p=from; p<to; p++)
+                intervalStates[p].makeUnique();
+
+            propagator.propagate(ws, intervalStates, from, to, streamSetter,
+                intervalStartTime, intervalEndTime, intervalLogWeights);
+
+            for (int p=from; p<to; p++)
+                intervalLogWeights[p] += getTreeEventLogProbability(
+                    intervalStates[p], intervalNode);
+            return;
+        }
+
+        for (int p=from; p<to; p++) {
+            setStream(ws.rng, intervalIdx, p);
+            intervalStates[p].makeUnique();
+
+            if (ws.trajectory != null)
+                ws.trajectory.startParticle(p);
+
+            intervalLogWeights[p] += updateParticle(ws, intervalStates[p],
+                intervalStartTime, intervalEndTime, intervalNode,
+                conditioning && p == REFERENCE);
+
+            if (ws.trajectory != null)
+                ws.trajectory.endParticle();
+        }
+    }
+
+    /**
+     * Prepare the random stream used by the given particle (or, for
+     * particle index nParticles, by resampling) in the given interval.
+     *
+     * @param rng stream to prepare
+     * @param interval index of interval
+     * @param p index of particle
+     */
+    private void setStream(RandomStream rng, int interval, int p) {
+        rng.setSeed(RandomStream.deriveSeed(filterSeed, interval, p));
+
+        if (aux != null)
+            rng.useAuxiliaryNormals(aux.getBlock(interval), p*auxBlockSize,
+                auxBlockSize);
+    }
+
     /**
      * Propagate particle over interval.
      * 
+     * @param ws propagator workspace
      * @param particleState State at the start of the interval.
      * @param startTime Time at the start of the interval.
+     * @param endTime Time at the end of the interval.
      * @param lineages Number of ancestral lineages extant at the
      *                 start of the interval.
      * @param node
+     * @param isReference true if the particle carries the reference
+     *                    trajectory, which is replayed rather than
+     *                    simulated
      * 
-     * @return 
+     * @return log conditional probability of the tree over the interval
      */
-    private double updateParticle(ParticleState particleState,
-        double startTime, Node node) {
-        double conditionalP = 1.0;
+    private double updateParticle(ParticlePropagator.Workspace ws,
+        ParticleState particleState, double startTime, double endTime,
+        Node node, boolean isReference) {
+        double logConditionalP = isReference
+            ? replayReference(ws, particleState, startTime, endTime)
+            : propagator.propagate(ws, particleState, startTime, endTime);
 
-        double t = startTime;
-        double endTime = model.getNodeTime(node);
+        return logConditionalP + getTreeEventLogProbability(particleState,
+            node);
+    }
 
-        while (true) {
+    /**
+     * Compute the log probability of the tree event ending an interval,
+     * given the particle state at the end of that interval.
+     *
+     * @param particleState state at the end of the interval
+     * @param node tree node at the end of the interval
+     * @return log probability of tree event
+     */
+    private double getTreeEventLogProbability(ParticleState particleState,
+        Node node) {
 
-            // Calculate reaction propensities
-            model.calculatePropensities(particleState);
+        // Incorporate probability density of population event at time of
+        // tree event
 
-            // Increment time
-            if (model.getTotalPropensity()>0.0)
-                t += Randomizer.nextExponential(model.getTotalPropensity());
-            else
-                t = Double.POSITIVE_INFINITY;
+        // Incorporate probability of tree event
 
-            // Stop if t>endTime
-            if (t>endTime)
-                break;
+        return 0.0;
+    }
 
-            // Choose reaction:
-            double u = Randomizer.nextDouble()*model.getTotalPropensity();
+    /**
+     * Replay the events of the reference trajectory falling within an
+     * interval.
+     *
+     * @param ws propagator workspace
+     * @param particleState state at the start of the interval, updated in
+     *                      place to the state at the end
+     * @param startTime time at the start of the interval
+     * @param endTime time at the end of the interval
+     * @return log conditional probability of the tree over the interval
+     */
+    private double replayReference(ParticlePropagator.Workspace ws,
+        ParticleState particleState, double startTime, double endTime) {
+        double logConditionalP = 0.0;
+
+        List<Reaction> reactions = model.getReactions();
+        for (int i=reference.getFirstEventAfter(startTime);
+            i<reference.getEventCount() && reference.getTime(i) <= endTime;
+            i++) {
+            Reaction react = reactions.get(reference.getReaction(i));
+            react.incrementState(particleState, reference.getMultiplicity(i));
+
+            logConditionalP += propagator.reactionFired(ws, particleState,
+                react, reference.getMultiplicity(i), reference.getTime(i));
+        }
+
+        return logConditionalP;
+    }
+
+    /**
+     * Choose the ancestor of the reference particle following resampling.
+     * Since the reference trajectory is a sequence of states, its density
+     * given a different ancestor vanishes unless that ancestor's state,
+     * including the types of the individuals carrying each lineage, is
+     * identical to the reference particle's own.  The ancestor is thus
+     * drawn from the particles sharing the reference particle's state,
+     * with probability proportional to their weights.
+     *
+     * @return index of ancestor
+     */
+    private int sampleReferenceAncestor() {
+        ParticleState referenceParticle = particleStates[REFERENCE];
+
+        double total = 0.0;
+        for (int p=0; p<nParticles; p++) {
+            if (particleStates[p].isEquivalent(referenceParticle))
+                total += particleWeights[p];
+        }
 
-            Reaction react = null;
-            for (Reaction thisReact : model.getPropensities().keySet()) {
-                u -= model.getPropensities().get(thisReact);
-                if (u<0) {
-                    react = thisReact;
+        double u = filterRNG.nextDouble()*total;
+        int choice = REFERENCE;
+        for (int p=0; p<nParticles; p++) {
+            if (particleStates[p].isEquivalent(referenceParticle)) {
+                choice = p;
+                u -= particleWeights[p];
+                if (u < 0)
                     break;
-                }
             }
+        }
 
-            if (react == null)
-                throw new IllegalStateException("Reaction-choosing loop fell through!");
+        return choice;
+    }
 
-            // Implement state change
-            react.incrementState(particleState);
+    /**
+     * Draw a new reference trajectory using conditional SMC given the
+     * current one.  Used by ParticleGibbsOperator.
+     *
+     * @param operator operator responsible for the change
+     * @throws Exception
+     */
+    void sampleReferenceTrajectory(Operator operator) throws Exception {
+        reference.startEditing(operator);
+        drawReferenceTrajectory(true);
+    }
 
-            // Randomly associate individuals with reactants.
+    /**
+     * Run the particle filter, recording the history of every particle,
+     * and replace the reference trajectory with the trajectory of a final
+     * particle chosen according to its weight.  The reference trajectory
+     * is left unchanged should every particle be inconsistent with the
+     * tree.
+     *
+     * @param conditional if true, condition on the current reference
+     *                    trajectory
+     * @throws Exception
+     */
+    private void drawReferenceTrajectory(boolean conditional) throws Exception {
+        tree.updateEventSchedule();
 
-            // Evaluate probability that reaction affected tree
+        conditioning = conditional;
+        recordingHistory = true;
+        history.clear(nParticles);
+        for (int w=0; w<nThreads; w++) {
+            trajectoryBuffers[w].clear();
+            workspaces[w].trajectory = trajectoryBuffers[w];
         }
 
-        // Incorporate probability density of population event at time of
-        // tree event
+        // Force a full run of the filter.
+        record.nEvents = -1;
+        double filterLogP = runFilter(Randomizer.nextLong());
 
-        // Incorporate probability of tree event
+        for (int w=0; w<nThreads; w++)
+            workspaces[w].trajectory = null;
+        recordingHistory = false;
+        conditioning = false;
+
+        if (!(filterLogP > Double.NEGATIVE_INFINITY))
+            return;
+
+        setStream(filterRNG, tree.getEventCount(), nParticles);
+        double u = filterRNG.nextDouble();
+        int choice = nParticles-1;
+        for (int p=0; p<nParticles; p++) {
+            u -= particleWeights[p];
+            if (u < 0) {
+                choice = p;
+                break;
+            }
+        }
+
+        history.trace(choice, reference);
+    }
+
+    /**
+     * Compute the log density of the reference trajectory under the
+     * current model parameters, together with the log conditional
+     * probability of the tree given the trajectory.  The trajectory is
+     * taken to extend to its last event or to the last tree event,
+     * whichever is later.
+     *
+     * @return log joint density of tree and reference trajectory
+     */
+    private double getReferenceLogDensity() {
+        ParticlePropagator.Workspace ws = workspaces[0];
+        ReactionPropensities propensities = ws.propensities;
+        List<Reaction> reactions = model.getReactions();
+
+        tree.updateEventSchedule();
+        double endTime = tree.getEventCount() > 0
+            ? model.getNodeTime(tree.getEventNode(tree.getEventCount()-1))
+            : 0.0;
+
+        referenceState.assignFrom(model.getInitialState());
+        referenceState.lineages.clear();
+        referenceState.lineages.add(model.getOriginType().getIndex(),
+            tree.getRoot().getNr());
+        propensities.calculate(referenceState);
+
+        double logDensity = 0.0;
+        double t = 0.0;
+        for (int i=0; i<reference.getEventCount(); i++) {
+            Reaction react = reactions.get(reference.getReaction(i));
+            long multiplicity = reference.getMultiplicity(i);
+            double eventTime = reference.getTime(i);
+
+            logDensity += -propensities.getTotal()*(eventTime - t)
+                + multiplicity*Math.log(propensities.get(react.getIndex()));
+            if (!(logDensity > Double.NEGATIVE_INFINITY))
+                return Double.NEGATIVE_INFINITY;
+
+            react.incrementState(referenceState, multiplicity);
+            propensities.update(referenceState, react);
+
+            logDensity += propagator.getTreeLogProbability(ws,
+                referenceState, react, multiplicity, eventTime);
+            t = eventTime;
+        }
+
+        if (endTime > t)
+            logDensity -= propensities.getTotal()*(endTime - t);
 
-        return conditionalP;
+        return logDensity;
     }
 
     @Override
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package packagex;
+
+import beast.util.Randomizer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * Evaluates the density of many trees and/or model parameter sets under
+ * the model of a given TreeDensity.  Each worker thread owns a single
+ * filter (with its own copy of the model, particle pool and workspace)
+ * which it reuses for every job it processes, so that all jobs may be
+ * evaluated concurrently regardless of their parameter sets.  Neither
+ * the model nor the trees of the template are modified.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class TreeDensityBatch {
+
+    /**
+     * A single tree/parameter set combination to evaluate.
+     */
+    public static class Job {
+        public final ReactionTree tree;
+        public final double[] parameters;
+
+        /**
+         * @param tree tree to evaluate
+         * @param parameters model parameters, in the order reported by
+         *                   Model.getParameterValues(), or null to use the
+         *                   model's current parameters
+         */
+        public Job(ReactionTree tree, double[] parameters) {
+            this.tree = tree;
+            this.parameters = parameters;
+        }
+    }
+
+    /**
+     * Result of evaluating a job.
+     */
+    public static class Result {
+        public final int jobIndex;
+        public final Job job;
+        public final double logP;
+
+        Result(int jobIndex, Job job, double logP) {
+            this.jobIndex = jobIndex;
+            this.job = job;
+            this.logP = logP;
+        }
+    }
+
+    final Model model;
+    final BlockingQueue<TreeDensity> filters;
+    final ExecutorService executor;
+    final int nThreads;
+
+    /**
+     * Create a batch evaluator using the model, particle count,
+     * propagator, resampling and lookahead settings of template, so that
+     * each job is evaluated as template's filter would evaluate it.
+     * Checkpoints, auxiliary random numbers, particle count adaptation,
+     * trajectory recording and particle Gibbs are not carried over: each
+     * job is a single full run of the filter from its own seed.
+     *
+     * @param template tree density to copy settings from
+     * @param nThreads number of worker threads
+     * @throws Exception
+     */
+    public TreeDensityBatch(TreeDensity template, int nThreads)
+        throws Exception {
+        this.nThreads = nThreads;
+        model = template.model;
+
+        // Filters are given their own models and a detached copy of the
+        // template tree so that they do not become outputs of (and are
+        // never recalculated alongside) any state node of the MCMC chain.
+        filters = new ArrayBlockingQueue<>(nThreads);
+        for (int w=0; w<nThreads; w++) {
+            ReactionTree placeholderTree = new ReactionTree();
+            placeholderTree.assignFrom(template.tree);
+
+            TreeDensity filter = new TreeDensity();
+            filter.initByName(
+                "mode", model.copy(),
+                "typedTree", placeholderTree,
+                "nParticles", template.nParticles,
+                "propagator", template.propagator,
+                "resamplingScheme", template.resamplingSchemeInput.get(),
+                "essThreshold", template.essThreshold,
+                "lookahead", template.lookahead,
+                "threads", 1);
+            filters.add(filter);
+        }
+
+        executor = Executors.newFixedThreadPool(nThreads, r -> {
+            Thread thread = new Thread(r, "TreeDensityBatch worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Construct the jobs needed to evaluate every tree under every
+     * parameter set.
+     *
+     * @param trees trees to evaluate
+     * @param parameterSets parameter sets to evaluate
+     * @return list of jobs
+     */
+    public static List<Job> allCombinations(List<ReactionTree> trees,
+        List<double[]> parameterSets) {
+        List<Job> jobs = new ArrayList<>();
+        for (double[] parameters : parameterSets) {
+            for (ReactionTree tree : trees)
+                jobs.add(new Job(tree, parameters));
+        }
+
+        return jobs;
+    }
+
+    /**
+     * Evaluate jobs, passing each result to resultConsumer as soon as it
+     * is available.  Results may arrive out of order; calls to the
+     * consumer are serialised.
+     *
+     * @param jobs jobs to evaluate
+     * @param resultConsumer receives results
+     * @throws Exception
+     */
+    public void evaluate(List<Job> jobs, Consumer<Result> resultConsumer)
+        throws Exception {
+
+        double[] currentParameters = new double[model.getParameterCount()];
+        model.getParameterValues(currentParameters);
+
+        // Draw seeds up front so results do not depend on scheduling.
+        long[] seeds = new long[jobs.size()];
+        for (int j=0; j<seeds.length; j++)
+            seeds[j] = Randomizer.nextLong();
+
+        // Trees are shared between workers, so bring each event schedule
+        // up to date before any filter reads it.
+        Set<ReactionTree> trees = Collections.newSetFromMap(
+            new IdentityHashMap<>());
+        for (Job job : jobs) {
+            if (trees.add(job.tree))
+                job.tree.updateEventSchedule();
+        }
+
+        List<Callable<Object>> tasks = new ArrayList<>();
+        for (int j=0; j<jobs.size(); j++) {
+            final int jobIndex = j;
+            tasks.add(() -> {
+                Job job = jobs.get(jobIndex);
+                TreeDensity filter = filters.take();
+                try {
+                    filter.model.setParameterValues(job.parameters != null
+                        ? job.parameters
+                        : currentParameters);
+                    double logP = filter.calculateLogP(job.tree,
+                        seeds[jobIndex]);
+                    synchronized (resultConsumer) {
+                        resultConsumer.accept(new Result(jobIndex, job, logP));
+                    }
+                } finally {
+                    filters.put(filter);
+                }
+                return null;
+            });
+        }
+
+        for (Future<Object> future : executor.invokeAll(tasks))
+            future.get();
+    }
+
+    /**
+     * Evaluate jobs, returning log likelihoods in job order.
+     *
+     * @param jobs jobs to evaluate
+     * @return log likelihood of each job
+     * @throws Exception
+     */
+    public double[] evaluate(List<Job> jobs) throws Exception {
+        double[] logPs = new double[jobs.size()];
+        evaluate(jobs, result -> logPs[result.jobIndex] = result.logP);
+
+        return logPs;
+    }
+
+    /**
+     * Stop worker threads, including any used by the filters.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        for (TreeDensity filter : filters)
+            filter.close();
+    }
+}
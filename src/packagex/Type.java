@@ -30,7 +30,19 @@ public class Type extends BEASTObject {
      */
     public static Type SAMPLED = new Type();
 
+    /**
+     * Dense index of this type within its model, assigned by Model.
+     */
+    int index = -1;
+
     @Override
     public void initAndValidate() throws Exception { }
+
+    /**
+     * @return index of this type within the model's state vector.
+     */
+    public int getIndex() {
+        return index;
+    }
     
 }
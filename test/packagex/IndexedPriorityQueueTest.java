@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package packagex;
+
+import java.util.Arrays;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for IndexedPriorityQueue.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class IndexedPriorityQueueTest {
+
+    private static int argMin(double[] keys) {
+        int min = 0;
+        for (int i=1; i<keys.length; i++) {
+            if (keys[i] < keys[min])
+                min = i;
+        }
+        return min;
+    }
+
+    @Test
+    public void testUpdate() {
+        RandomStream rng = new RandomStream(1);
+
+        for (int n : new int[] {1, 2, 7, 64, 100}) {
+            double[] keys = new double[n];
+            for (int i=0; i<n; i++)
+                keys[i] = rng.nextDouble() < 0.1
+                    ? Double.POSITIVE_INFINITY
+                    : rng.nextExponential(1.0);
+
+            IndexedPriorityQueue queue = new IndexedPriorityQueue(n);
+            queue.reset(keys);
+            assertEquals(keys[argMin(keys)], queue.getMinKey(), 0.0);
+
+            for (int u=0; u<2000; u++) {
+                int i = rng.nextInt(n);
+                double r = rng.nextDouble();
+                if (r < 0.1)
+                    keys[i] = Double.POSITIVE_INFINITY;
+                else if (r < 0.2)
+                    keys[i] = keys[queue.getMin()];
+                else
+                    keys[i] += rng.nextGaussian();
+                queue.update(i, keys[i]);
+
+                int min = queue.getMin();
+                assertEquals(keys[argMin(keys)], queue.getMinKey(), 0.0);
+                assertEquals(keys[min], queue.getMinKey(), 0.0);
+                for (int j=0; j<n; j++)
+                    assertEquals(keys[j], queue.getKey(j), 0.0);
+            }
+        }
+    }
+
+    @Test
+    public void testOrder() {
+        RandomStream rng = new RandomStream(2);
+        int n = 50;
+        double[] keys = new double[n];
+        for (int i=0; i<n; i++)
+            keys[i] = rng.nextDouble();
+
+        IndexedPriorityQueue queue = new IndexedPriorityQueue(n);
+        queue.reset(keys);
+
+        // Repeatedly removing the minimum visits every element in order
+        // of increasing key.
+        double[] sorted = keys.clone();
+        Arrays.sort(sorted);
+        boolean[] seen = new boolean[n];
+        for (int k=0; k<n; k++) {
+            int min = queue.getMin();
+            assertFalse(seen[min]);
+            seen[min] = true;
+            assertEquals(sorted[k], queue.getMinKey(), 0.0);
+            queue.update(min, Double.POSITIVE_INFINITY);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package packagex;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for LineageIndex, comparing it against a map from node number to
+ * type under random sequences of additions, removals and type changes.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class LineageIndexTest {
+
+    /**
+     * Assert that index holds exactly the lineages of expected.
+     */
+    private static void assertIndexMatches(Map<Integer, Integer> expected,
+        LineageIndex index, int nTypes, int nNodes) {
+
+        assertEquals(expected.size(), index.getTotalCount());
+
+        int[] typeCounts = new int[nTypes];
+        for (int type : expected.values())
+            typeCounts[type] += 1;
+
+        for (int t=0; t<nTypes; t++) {
+            assertEquals(typeCounts[t], index.getCount(t));
+            for (int i=0; i<index.getCount(t); i++) {
+                int node = index.get(t, i);
+                assertEquals(Integer.valueOf(t), expected.get(node));
+                assertEquals(t, index.getType(node));
+            }
+        }
+
+        for (int node=0; node<nNodes; node++)
+            assertEquals(expected.containsKey(node), index.contains(node));
+    }
+
+    @Test
+    public void testAddRemoveRetype() {
+        int nTypes = 4, nNodes = 30;
+        LineageIndex index = new LineageIndex(nTypes, nNodes);
+        Map<Integer, Integer> expected = new HashMap<>();
+        RandomStream rng = new RandomStream(1);
+
+        for (int step=0; step<5000; step++) {
+            int node = rng.nextInt(nNodes);
+            int type = rng.nextInt(nTypes);
+
+            if (!expected.containsKey(node)) {
+                index.add(type, node);
+                expected.put(node, type);
+            } else if (rng.nextDouble() < 0.5) {
+                index.remove(node);
+                expected.remove(node);
+            } else {
+                index.setType(node, type);
+                expected.put(node, type);
+            }
+
+            assertIndexMatches(expected, index, nTypes, nNodes);
+        }
+
+        index.clear();
+        expected.clear();
+        assertIndexMatches(expected, index, nTypes, nNodes);
+    }
+
+    @Test
+    public void testChoose() {
+        LineageIndex index = new LineageIndex(2, 10);
+        index.add(1, 3);
+        index.add(0, 7);
+        index.add(1, 5);
+        index.add(1, 9);
+
+        RandomStream rng = new RandomStream(2);
+        int[] counts = new int[10];
+        int n = 30000;
+        for (int i=0; i<n; i++) {
+            int node = index.choose(1, rng);
+            assertEquals(1, index.getType(node));
+            counts[node] += 1;
+        }
+
+        for (int node : new int[] {3, 5, 9})
+            assertEquals(n/3.0, counts[node], 5.0*Math.sqrt(n*2.0/9.0));
+    }
+
+    @Test
+    public void testAssignFromAndEquivalence() {
+        int nTypes = 3, nNodes = 20;
+        LineageIndex index = new LineageIndex(nTypes, nNodes);
+        LineageIndex copy = new LineageIndex(nTypes, nNodes);
+        RandomStream rng = new RandomStream(3);
+
+        for (int node=0; node<nNodes; node += 2)
+            index.add(rng.nextInt(nTypes), node);
+        index.remove(4);
+        index.setType(6, (index.getType(6)+1) % nTypes);
+
+        // Stale entries in the copy must not survive assignment.
+        copy.add(0, 1);
+        copy.add(2, 4);
+
+        copy.assignFrom(index);
+        assertTrue(copy.isEquivalent(index));
+        assertTrue(index.isEquivalent(copy));
+        assertFalse(copy.contains(1));
+        assertFalse(copy.contains(4));
+
+        Map<Integer, Integer> expected = new HashMap<>();
+        for (int t=0; t<nTypes; t++) {
+            for (int i=0; i<index.getCount(t); i++)
+                expected.put(index.get(t, i), t);
+        }
+        assertIndexMatches(expected, copy, nTypes, nNodes);
+
+        // Equivalence ignores the order of lineages within each type...
+        LineageIndex reordered = new LineageIndex(nTypes, nNodes);
+        for (int node=nNodes-1; node>=0; node--) {
+            if (expected.containsKey(node))
+                reordered.add(expected.get(node), node);
+        }
+        assertTrue(reordered.isEquivalent(index));
+
+        // ...but not their types or membership.
+        copy.setType(6, (copy.getType(6)+1) % nTypes);
+        assertFalse(copy.isEquivalent(index));
+        copy.assignFrom(index);
+        copy.remove(8);
+        copy.add(index.getType(8), 9);
+        assertFalse(copy.isEquivalent(index));
+    }
+}
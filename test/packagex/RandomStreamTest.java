@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package packagex;
+
+import java.util.Arrays;
+import java.util.function.DoubleSupplier;
+import java.util.function.DoubleUnaryOperator;
+import java.util.function.IntToDoubleFunction;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the variate generators of RandomStream: moments and
+ * chi-squared goodness of fit of the ziggurat exponential and normal
+ * samplers and of the inversion, PTRS (Poisson) and BTRD (binomial)
+ * samplers.  Streams are seeded, so the tests are deterministic.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class RandomStreamTest {
+
+    static final int N_SAMPLES = 200000;
+
+    /**
+     * Chi-squared statistic of observed counts against expected
+     * probabilities, pooling cells with expected count below 5 into a
+     * single cell.
+     *
+     * @param counts observed counts
+     * @param probs expected probabilities
+     * @param n total number of observations
+     * @param df array in which to place the degrees of freedom
+     * @return chi-squared statistic
+     */
+    private static double chiSquared(long[] counts, double[] probs, int n,
+        int[] df) {
+        double stat = 0.0, pooledObs = n, pooledExp = n;
+        int nCells = 0;
+        for (int k=0; k<counts.length; k++) {
+            double expected = n*probs[k];
+            if (expected < 5.0)
+                continue;
+
+            stat += (counts[k]-expected)*(counts[k]-expected)/expected;
+            pooledObs -= counts[k];
+            pooledExp -= expected;
+            nCells += 1;
+        }
+
+        if (pooledExp >= 5.0) {
+            stat += (pooledObs-pooledExp)*(pooledObs-pooledExp)/pooledExp;
+            nCells += 1;
+        }
+
+        df[0] = nCells - 1;
+        return stat;
+    }
+
+    /**
+     * Assert that a chi-squared statistic lies well within the bulk of
+     * its distribution (more than five standard deviations above the mean
+     * is treated as failure).
+     */
+    private static void assertChiSquared(String msg, double stat, int df) {
+        assertTrue(msg + ": chi-squared " + stat + " with " + df + " df",
+            stat < df + 5.0*Math.sqrt(2.0*df));
+    }
+
+    private static void assertMoments(String msg, double[] x,
+        double mean, double var) {
+        double sum = 0.0, sumSq = 0.0;
+        for (double v : x) {
+            sum += v;
+            sumSq += v*v;
+        }
+        double sampleMean = sum/x.length;
+        double sampleVar = sumSq/x.length - sampleMean*sampleMean;
+
+        assertEquals(msg + " mean", mean, sampleMean,
+            5.0*Math.sqrt(var/x.length));
+        assertEquals(msg + " variance", var, sampleVar, 0.02*var);
+    }
+
+    /**
+     * Test a continuous sampler against its CDF using equiprobable bins.
+     */
+    private static void assertContinuousFit(String msg, double[] x,
+        DoubleUnaryOperator cdf) {
+        int nBins = 100;
+        long[] counts = new long[nBins];
+        for (double v : x)
+            counts[Math.min(nBins-1, (int)(cdf.applyAsDouble(v)*nBins))] += 1;
+
+        double[] probs = new double[nBins];
+        Arrays.fill(probs, 1.0/nBins);
+
+        int[] df = new int[1];
+        assertChiSquared(msg, chiSquared(counts, probs, x.length, df), df[0]);
+    }
+
+    /**
+     * Assert that variates exceed threshold with the given probability.
+     */
+    private static void assertTailFrequency(String msg, DoubleSupplier sampler,
+        double threshold, double prob) {
+        int n = 50*N_SAMPLES;
+        long nTail = 0;
+        for (int i=0; i<n; i++) {
+            if (sampler.getAsDouble() > threshold)
+                nTail += 1;
+        }
+
+        double expected = n*prob;
+        assertEquals(msg + " tail beyond " + threshold, expected, nTail,
+            5.0*Math.sqrt(expected));
+    }
+
+    /**
+     * Test a discrete sampler against its log probability mass function
+     * on the support 0 to kMax.
+     */
+    private static void assertDiscreteFit(String msg, long[] x, int kMax,
+        IntToDoubleFunction logPMF) {
+        long[] counts = new long[kMax+1];
+        double[] probs = new double[kMax+1];
+        for (int k=0; k<=kMax; k++)
+            probs[k] = Math.exp(logPMF.applyAsDouble(k));
+
+        for (long k : x) {
+            assertTrue(msg + " variate " + k + " out of range",
+                k >= 0 && k <= kMax);
+            counts[(int)k] += 1;
+        }
+
+        int[] df = new int[1];
+        assertChiSquared(msg, chiSquared(counts, probs, x.length, df), df[0]);
+    }
+
+    /**
+     * @return array of log(k!) for k from 0 to n.
+     */
+    private static double[] logFactorials(int n) {
+        double[] result = new double[n+1];
+        for (int k=2; k<=n; k++)
+            result[k] = result[k-1] + Math.log(k);
+        return result;
+    }
+
+    @Test
+    public void testReproducible() {
+        RandomStream a = new RandomStream(17), b = new RandomStream(3);
+        b.setSeed(17);
+        for (int i=0; i<1000; i++) {
+            assertEquals(a.nextLong(), b.nextLong());
+            assertEquals(a.nextGaussian(), b.nextGaussian(), 0.0);
+            assertEquals(a.nextPoisson(50.0), b.nextPoisson(50.0));
+        }
+
+        assertTrue(RandomStream.deriveSeed(1, 2, 3)
+            != RandomStream.deriveSeed(1, 3, 2));
+    }
+
+    @Test
+    public void testUniform() {
+        RandomStream rng = new RandomStream(1);
+        double[] x = new double[N_SAMPLES];
+        for (int i=0; i<N_SAMPLES; i++) {
+            x[i] = rng.nextDouble();
+            assertTrue(x[i] >= 0.0 && x[i] < 1.0);
+        }
+
+        assertMoments("uniform", x, 0.5, 1.0/12.0);
+        assertContinuousFit("uniform", x, v -> v);
+    }
+
+    @Test
+    public void testExponential() {
+        RandomStream rng = new RandomStream(2);
+        double rate = 2.5;
+        double[] x = new double[10*N_SAMPLES];
+        for (int i=0; i<x.length; i++)
+            x[i] = rng.nextExponential(rate);
+
+        assertMoments("exponential", x, 1.0/rate, 1.0/(rate*rate));
+        assertContinuousFit("exponential", x, v -> -Math.expm1(-rate*v));
+
+        // Variates from the base layer of the ziggurat include those from
+        // the tail beyond r = 7.697.
+        assertTailFrequency("exponential", () -> rng.nextExponential(1.0),
+            7.697117470131487, Math.exp(-7.697117470131487));
+        assertTailFrequency("exponential", () -> rng.nextExponential(1.0),
+            9.0, Math.exp(-9.0));
+    }
+
+    @Test
+    public void testGaussian() {
+        RandomStream rng = new RandomStream(3);
+        double[] x = new double[10*N_SAMPLES];
+        for (int i=0; i<x.length; i++)
+            x[i] = rng.nextGaussian();
+
+        assertMoments("normal", x, 0.0, 1.0);
+        assertContinuousFit("normal", x, RandomStream::normalCDF);
+
+        double sumCubes = 0.0, sumFourth = 0.0;
+        for (double v : x) {
+            sumCubes += v*v*v;
+            sumFourth += v*v*v*v;
+        }
+        assertEquals("normal skewness", 0.0, sumCubes/x.length, 0.03);
+        assertEquals("normal kurtosis", 3.0, sumFourth/x.length, 0.05);
+
+        // Tail beyond r = 3.443 is sampled separately.
+        assertTailFrequency("normal", () -> Math.abs(rng.nextGaussian()),
+            3.442619855899, 2.0*RandomStream.normalCDF(-3.442619855899));
+        assertTailFrequency("normal", () -> Math.abs(rng.nextGaussian()),
+            4.0, 2.0*RandomStream.normalCDF(-4.0));
+    }
+
+    private void checkPoisson(long seed, double mean) {
+        RandomStream rng = new RandomStream(seed);
+        long[] k = new long[N_SAMPLES];
+        double[] x = new double[N_SAMPLES];
+        for (int i=0; i<N_SAMPLES; i++) {
+            k[i] = rng.nextPoisson(mean);
+            x[i] = k[i];
+        }
+
+        String msg = "Poisson(" + mean + ")";
+        int kMax = (int)(mean + 20*Math.sqrt(mean) + 20);
+        double[] logFact = logFactorials(kMax);
+        assertMoments(msg, x, mean, mean);
+        assertDiscreteFit(msg, k, kMax,
+            j -> -mean + j*Math.log(mean) - logFact[j]);
+    }
+
+    @Test
+    public void testPoisson() {
+        // Inversion
+        checkPoisson(4, 0.7);
+        checkPoisson(5, 6.5);
+
+        // PTRS
+        checkPoisson(6, 10.0);
+        checkPoisson(7, 37.2);
+        checkPoisson(8, 1500.0);
+
+        assertEquals(0, new RandomStream(9).nextPoisson(0.0));
+    }
+
+    private void checkBinomial(long seed, int n, double p) {
+        RandomStream rng = new RandomStream(seed);
+        long[] k = new long[N_SAMPLES];
+        double[] x = new double[N_SAMPLES];
+        for (int i=0; i<N_SAMPLES; i++) {
+            k[i] = rng.nextBinomial(n, p);
+            x[i] = k[i];
+        }
+
+        String msg = "Binomial(" + n + ", " + p + ")";
+        double[] logFact = logFactorials(n);
+        assertMoments(msg, x, n*p, n*p*(1-p));
+        assertDiscreteFit(msg, k, n,
+            j -> logFact[n] - logFact[j] - logFact[n-j]
+                + j*Math.log(p) + (n-j)*Math.log1p(-p));
+    }
+
+    @Test
+    public void testBinomial() {
+        // Inversion
+        checkBinomial(10, 20, 0.1);
+        checkBinomial(11, 40, 0.9);
+
+        // BTRD, including the recursive evaluation of f(k)/f(m) close to
+        // the mode and the Stirling approximation far from it.
+        checkBinomial(12, 100, 0.3);
+        checkBinomial(13, 5000, 0.45);
+        checkBinomial(14, 2000, 0.96);
+
+        RandomStream rng = new RandomStream(15);
+        assertEquals(0, rng.nextBinomial(10, 0.0));
+        assertEquals(10, rng.nextBinomial(10, 1.0));
+        assertEquals(0, rng.nextBinomial(0, 0.5));
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package packagex;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the ReactionSelector implementations.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class ReactionSelectorTest {
+
+    // Propensities spanning several orders of magnitude, with zeros,
+    // over a number of reactions which is not a power of two.
+    static final double[] PROPENSITIES = {
+        1.5, 0.0, 3.0, 1e-3, 250.0, 0.7, 0.0, 12.0, 64.0, 0.02, 5.5, 1.0, 99.0
+    };
+
+    /**
+     * Select many reactions and assert that each reaction is chosen with
+     * probability proportional to its propensity, with reactions of zero
+     * propensity never chosen.
+     */
+    private void assertSelectionFrequencies(String msg,
+        ReactionSelector selector, double[] propensities, RandomStream rng) {
+        int n = 500000;
+        double total = 0.0;
+        for (double a : propensities)
+            total += a;
+
+        long[] counts = new long[propensities.length];
+        for (int i=0; i<n; i++)
+            counts[selector.select(rng)] += 1;
+
+        double chiSq = 0.0;
+        int df = -1;
+        for (int r=0; r<propensities.length; r++) {
+            double expected = n*propensities[r]/total;
+            if (propensities[r] == 0.0)
+                assertEquals(msg + " zero propensity reaction " + r, 0, counts[r]);
+            else if (expected >= 5.0) {
+                chiSq += (counts[r]-expected)*(counts[r]-expected)/expected;
+                df += 1;
+            } else
+                assertTrue(msg + " reaction " + r, counts[r] < 5*expected + 20);
+        }
+
+        assertTrue(msg + ": chi-squared " + chiSq + " with " + df + " df",
+            chiSq < df + 5.0*Math.sqrt(2.0*df));
+    }
+
+    private static double sum(double[] values) {
+        double total = 0.0;
+        for (double v : values)
+            total += v;
+        return total;
+    }
+
+    @Test
+    public void testSelect() {
+        for (ReactionSelector.Method method : ReactionSelector.Method.values()) {
+            ReactionSelector selector = ReactionSelector.create(method,
+                PROPENSITIES.length);
+            selector.reset(PROPENSITIES);
+
+            assertEquals(method.toString(), sum(PROPENSITIES),
+                selector.getTotal(), 1e-12);
+            assertSelectionFrequencies(method.toString(), selector,
+                PROPENSITIES, new RandomStream(1));
+        }
+    }
+
+    @Test
+    public void testUpdate() {
+        for (ReactionSelector.Method method : ReactionSelector.Method.values()) {
+            ReactionSelector selector = ReactionSelector.create(method,
+                PROPENSITIES.length);
+            selector.reset(PROPENSITIES);
+
+            // Enough updates to trigger periodic resummation, moving
+            // reactions between magnitudes and to and from zero.  Totals
+            // maintained incrementally are accurate relative to the
+            // largest propensity held.
+            double[] propensities = PROPENSITIES.clone();
+            double maxPropensity = 0.0;
+            RandomStream rng = new RandomStream(2);
+            for (int i=0; i<5000; i++) {
+                int r = rng.nextInt(propensities.length);
+                propensities[r] = rng.nextDouble() < 0.2
+                    ? 0.0
+                    : Math.exp(10.0*rng.nextGaussian());
+                selector.update(r, propensities[r]);
+
+                maxPropensity = Math.max(maxPropensity, propensities[r]);
+                assertEquals(method.toString(), sum(propensities),
+                    selector.getTotal(), 1e-12*maxPropensity);
+            }
+
+            // Compress the range so that every reaction can be checked.
+            for (int r=0; r<propensities.length; r++) {
+                if (propensities[r] > 0.0)
+                    propensities[r] = 1.0 + Math.log1p(propensities[r]);
+                selector.update(r, propensities[r]);
+            }
+            propensities[4] = 0.0;
+            selector.update(4, 0.0);
+
+            assertSelectionFrequencies(method.toString(), selector,
+                propensities, rng);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package packagex;
+
+import java.util.Arrays;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the resampling schemes of Resampler.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class ResamplerTest {
+
+    static final double[] WEIGHTS = {0.5, 0.0, 2.0, 0.25, 1.0, 0.0, 3.1, 0.15, 0.7, 1.3};
+
+    /**
+     * Resample WEIGHTS many times, checking that every ancestor is a
+     * particle of positive weight, and return the mean number of
+     * offspring of each particle.
+     */
+    private double[] meanOffspring(Resampler.Scheme scheme, int nReps,
+        int[][] minMax) {
+        int N = WEIGHTS.length;
+        double total = 0.0;
+        for (double w : WEIGHTS)
+            total += w;
+
+        Resampler resampler = new Resampler(scheme, N);
+        RandomStream rng = new RandomStream(42);
+        int[] ancestors = new int[N];
+        int[] counts = new int[N];
+        double[] mean = new double[N];
+
+        for (int p=0; p<N; p++) {
+            minMax[p][0] = Integer.MAX_VALUE;
+            minMax[p][1] = Integer.MIN_VALUE;
+        }
+
+        for (int rep=0; rep<nReps; rep++) {
+            resampler.resample(WEIGHTS, total, ancestors, rng);
+
+            Arrays.fill(counts, 0);
+            for (int a : ancestors) {
+                assertTrue(a >= 0 && a < N);
+                assertTrue("zero weight particle chosen", WEIGHTS[a] > 0.0);
+                counts[a] += 1;
+            }
+
+            for (int p=0; p<N; p++) {
+                mean[p] += counts[p]/(double)nReps;
+                minMax[p][0] = Math.min(minMax[p][0], counts[p]);
+                minMax[p][1] = Math.max(minMax[p][1], counts[p]);
+            }
+        }
+
+        return mean;
+    }
+
+    private double[] expectedOffspring() {
+        double total = 0.0;
+        for (double w : WEIGHTS)
+            total += w;
+
+        double[] expected = new double[WEIGHTS.length];
+        for (int p=0; p<WEIGHTS.length; p++)
+            expected[p] = WEIGHTS.length*WEIGHTS[p]/total;
+
+        return expected;
+    }
+
+    @Test
+    public void testUnbiased() {
+        double[] expected = expectedOffspring();
+        int[][] minMax = new int[WEIGHTS.length][2];
+
+        for (Resampler.Scheme scheme : Resampler.Scheme.values()) {
+            double[] mean = meanOffspring(scheme, 20000, minMax);
+            for (int p=0; p<WEIGHTS.length; p++)
+                assertEquals(scheme + " particle " + p, expected[p], mean[p], 0.05);
+        }
+    }
+
+    @Test
+    public void testSystematicOffspringCounts() {
+        double[] expected = expectedOffspring();
+        int[][] minMax = new int[WEIGHTS.length][2];
+
+        // Systematic resampling gives each particle either the floor or
+        // the ceiling of its expected number of offspring.
+        meanOffspring(Resampler.Scheme.SYSTEMATIC, 5000, minMax);
+        for (int p=0; p<WEIGHTS.length; p++) {
+            assertTrue(minMax[p][0] >= Math.floor(expected[p]));
+            assertTrue(minMax[p][1] <= Math.ceil(expected[p]));
+        }
+    }
+
+    @Test
+    public void testResidualOffspringCounts() {
+        double[] expected = expectedOffspring();
+        int[][] minMax = new int[WEIGHTS.length][2];
+
+        // Residual resampling assigns at least the integer part of the
+        // expected number of offspring deterministically.
+        meanOffspring(Resampler.Scheme.RESIDUAL, 5000, minMax);
+        for (int p=0; p<WEIGHTS.length; p++)
+            assertTrue(minMax[p][0] >= Math.floor(expected[p]));
+    }
+
+    @Test
+    public void testESS() {
+        assertEquals(4.0, Resampler.getESS(new double[] {1, 1, 1, 1}), 1e-12);
+        assertEquals(1.0, Resampler.getESS(new double[] {0, 3, 0, 0}), 1e-12);
+        assertEquals(2.0, Resampler.getESS(new double[] {0.5, 0.5, 0, 0}), 1e-12);
+    }
+}
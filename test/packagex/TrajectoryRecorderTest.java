@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package packagex;
+
+import beast.core.parameter.IntegerParameter;
+import beast.core.parameter.RealParameter;
+import java.io.File;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that records written by TrajectoryRecorder are read back
+ * unchanged by TrajectoryReader.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class TrajectoryRecorderTest {
+
+    static final int N_PARTICLES = 5;
+
+    Model model;
+    File file;
+
+    @Before
+    public void setUp() throws Exception {
+        Type type = new Type();
+        type.setID("A");
+
+        Reaction birth = new Reaction();
+        birth.initByName(
+            "reactant", type,
+            "product", type,
+            "product", type,
+            "p2rMap", 0,
+            "p2rMap", -1,
+            "rate", new RealParameter(new Double[] {1.0}));
+
+        Reaction death = new Reaction();
+        death.initByName(
+            "reactant", type,
+            "rate", new RealParameter(new Double[] {0.5}));
+
+        PopulationSize popSize = new PopulationSize();
+        popSize.initByName(
+            "popType", type,
+            "popSize", new IntegerParameter(new Integer[] {10}));
+
+        model = new Model();
+        model.initByName(
+            "reaction", birth,
+            "reaction", death,
+            "initialPopSize", popSize,
+            "originType", type,
+            "timeOfOrigin", new RealParameter(new Double[] {5.0}));
+
+        file = File.createTempFile("trajectories", ".bin");
+        file.deleteOnExit();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private TrajectoryRecorder recorder(int recordEvery) throws Exception {
+        TrajectoryRecorder recorder = new TrajectoryRecorder();
+        recorder.initByName(
+            "fileName", file.getPath(),
+            "recordEvery", recordEvery);
+        recorder.open(model);
+
+        return recorder;
+    }
+
+    /**
+     * Simulated evaluation: per-thread buffers of random events and the
+     * ancestors chosen following each interval.
+     */
+    static class Evaluation {
+        final int[] nodeNrs;
+        final double[] startTimes, endTimes;
+        final int[][] eventCounts, reactions;
+        final double[][] times;
+        final long[][] multiplicities;
+        final int[][] ancestors;
+        final double logP;
+
+        Evaluation(int nIntervals, RandomStream rng) {
+            nodeNrs = new int[nIntervals];
+            startTimes = new double[nIntervals];
+            endTimes = new double[nIntervals];
+            eventCounts = new int[nIntervals][N_PARTICLES];
+            reactions = new int[nIntervals][];
+            times = new double[nIntervals][];
+            multiplicities = new long[nIntervals][];
+            ancestors = new int[nIntervals][];
+            logP = -10.0*rng.nextDouble();
+
+            double t = 0.0;
+            for (int i=0; i<nIntervals; i++) {
+                nodeNrs[i] = rng.nextInt(100);
+                startTimes[i] = t;
+                t += rng.nextExponential(1.0);
+                endTimes[i] = t;
+
+                int nEvents = 0;
+                for (int p=0; p<N_PARTICLES; p++) {
+                    eventCounts[i][p] = rng.nextInt(4);
+                    nEvents += eventCounts[i][p];
+                }
+
+                // Events of each particle are stored consecutively, with
+                // multiplicities exceeding the range of an int.
+                reactions[i] = new int[nEvents];
+                times[i] = new double[nEvents];
+                multiplicities[i] = new long[nEvents];
+                for (int e=0; e<nEvents; e++) {
+                    reactions[i][e] = rng.nextInt(2);
+                    times[i][e] = startTimes[i]
+                        + (endTimes[i] - startTimes[i])*rng.nextDouble();
+                    multiplicities[i][e] = rng.nextDouble() < 0.5
+                        ? 1
+                        : (1L << 33) + rng.nextInt(1000);
+                }
+
+                if (rng.nextDouble() < 0.5) {
+                    ancestors[i] = new int[N_PARTICLES];
+                    for (int p=0; p<N_PARTICLES; p++)
+                        ancestors[i][p] = rng.nextInt(N_PARTICLES);
+                }
+            }
+        }
+
+        /**
+         * Write this evaluation, with particles split between two
+         * buffers as if propagated by two threads.
+         */
+        void write(TrajectoryRecorder recorder) throws Exception {
+            TrajectoryRecorder.Buffer[] buffers = {
+                new TrajectoryRecorder.Buffer(),
+                new TrajectoryRecorder.Buffer()
+            };
+
+            for (int i=0; i<nodeNrs.length; i++) {
+                int e = 0;
+                for (int p=0; p<N_PARTICLES; p++) {
+                    TrajectoryRecorder.Buffer buffer = buffers[p < 2 ? 0 : 1];
+                    buffer.startParticle(p);
+                    for (int k=0; k<eventCounts[i][p]; k++, e++)
+                        buffer.add(reactions[i][e], times[i][e],
+                            multiplicities[i][e]);
+                    buffer.endParticle();
+                }
+
+                recorder.writeInterval(nodeNrs[i], startTimes[i], endTimes[i],
+                    N_PARTICLES, buffers, ancestors[i]);
+            }
+
+            recorder.endEvaluation(logP);
+        }
+
+        void assertRecordMatches(TrajectoryReader.Record record) {
+            assertEquals(logP, record.getLogP(), 0.0);
+            assertEquals(nodeNrs.length, record.getIntervalCount());
+
+            for (int i=0; i<nodeNrs.length; i++) {
+                assertEquals(nodeNrs[i], record.getNodeNr(i));
+                assertEquals(startTimes[i], record.getStartTime(i), 0.0);
+                assertEquals(endTimes[i], record.getEndTime(i), 0.0);
+                assertEquals(N_PARTICLES, record.getParticleCount(i));
+
+                int e = 0;
+                for (int p=0; p<N_PARTICLES; p++) {
+                    List<SystemEvent> events = record.getEvents(i, p);
+                    assertEquals(eventCounts[i][p], events.size());
+                    for (SystemEvent event : events) {
+                        assertEquals(reactions[i][e], event.getReaction().getIndex());
+                        assertEquals(times[i][e], event.getTime(), 0.0);
+                        assertEquals(multiplicities[i][e], event.getMultiplicity());
+                        e += 1;
+                    }
+                }
+
+                if (ancestors[i] == null)
+                    assertNull(record.getAncestors(i));
+                else
+                    assertArrayEquals(ancestors[i], record.getAncestors(i));
+            }
+
+            // Trajectories follow the ancestry back from the final
+            // population.
+            for (int p=0; p<N_PARTICLES; p++) {
+                List<SystemEvent> trajectory = record.getTrajectory(p);
+                int ancestor = p, end = trajectory.size();
+                for (int i=nodeNrs.length-1; i>=0; i--) {
+                    if (ancestors[i] != null)
+                        ancestor = ancestors[i][ancestor];
+
+                    List<SystemEvent> events = record.getEvents(i, ancestor);
+                    end -= events.size();
+                    for (int k=0; k<events.size(); k++)
+                        assertEquals(events.get(k).getTime(),
+                            trajectory.get(end + k).getTime(), 0.0);
+                }
+                assertEquals(0, end);
+            }
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        RandomStream rng = new RandomStream(1);
+        TrajectoryRecorder recorder = recorder(1);
+
+        Evaluation[] evaluations = new Evaluation[3];
+        for (int j=0; j<evaluations.length; j++) {
+            evaluations[j] = new Evaluation(10 + j, rng);
+            assertTrue(recorder.startEvaluation());
+            evaluations[j].write(recorder);
+        }
+        recorder.close();
+
+        try (TrajectoryReader reader = new TrajectoryReader(file.getPath(), model)) {
+            assertEquals(evaluations.length, reader.getRecordCount());
+            for (int j=0; j<evaluations.length; j++) {
+                assertEquals(j+1, reader.getRecord(j).getEvaluation());
+                evaluations[j].assertRecordMatches(reader.getRecord(j));
+            }
+        }
+    }
+
+    @Test
+    public void testDiscardAndRecordEvery() throws Exception {
+        RandomStream rng = new RandomStream(2);
+        TrajectoryRecorder recorder = recorder(2);
+
+        // Evaluation 2 is recorded and accepted, 4 is recorded and
+        // rejected, and 6 is recorded but neither accepted nor rejected
+        // when the file is closed.
+        Evaluation[] evaluations = new Evaluation[7];
+        for (int j=1; j<=6; j++) {
+            boolean recording = recorder.startEvaluation();
+            assertEquals(j % 2 == 0, recording);
+            if (recording) {
+                evaluations[j] = new Evaluation(j, rng);
+                evaluations[j].write(recorder);
+            }
+
+            if (j == 4)
+                recorder.discard();
+        }
+        recorder.close();
+
+        try (TrajectoryReader reader = new TrajectoryReader(file.getPath(), model)) {
+            assertEquals(2, reader.getRecordCount());
+            assertEquals(2, reader.getRecord(0).getEvaluation());
+            evaluations[2].assertRecordMatches(reader.getRecord(0));
+            assertEquals(6, reader.getRecord(1).getEvaluation());
+            evaluations[6].assertRecordMatches(reader.getRecord(1));
+        }
+    }
+
+    @Test
+    public void testReopen() throws Exception {
+        RandomStream rng = new RandomStream(3);
+        TrajectoryRecorder recorder = recorder(1);
+        recorder.startEvaluation();
+        new Evaluation(5, rng).write(recorder);
+
+        // Reopening starts a new file.
+        recorder.open(model);
+        Evaluation evaluation = new Evaluation(3, rng);
+        recorder.startEvaluation();
+        evaluation.write(recorder);
+        recorder.close();
+        recorder.close();
+
+        try (TrajectoryReader reader = new TrajectoryReader(file.getPath(), model)) {
+            assertEquals(1, reader.getRecordCount());
+            assertEquals(1, reader.getRecord(0).getEvaluation());
+            evaluation.assertRecordMatches(reader.getRecord(0));
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package packagex;
+
+import beast.core.parameter.IntegerParameter;
+import beast.core.parameter.RealParameter;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.Tree;
+import beast.util.Randomizer;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that a particle filter resuming from checkpoints computes exactly
+ * the same estimates as a complete run of the filter using the same
+ * seed, as the tree and model parameters change.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class TreeDensityCheckpointTest {
+
+    static final long SEED = 53;
+    static final int N_PARTICLES = 20;
+
+    /**
+     * Direct method propagator which also weights particles according to
+     * their population size, so that estimates depend on the particle
+     * trajectories and resampling.
+     */
+    public static class WeightedPropagator extends DirectPropagator {
+        @Override
+        public double propagate(Workspace ws, ParticleState particleState,
+            double startTime, double endTime) {
+            double logConditionalP = super.propagate(ws, particleState,
+                startTime, endTime);
+
+            return logConditionalP
+                - 0.01*particleState.counts[0]*(endTime - startTime);
+        }
+    }
+
+    private static Model birthDeathModel(double birthRate, double deathRate,
+        int initialSize) throws Exception {
+        Type type = new Type();
+        type.setID("A");
+
+        Reaction birth = new Reaction();
+        birth.initByName(
+            "reactant", type,
+            "product", type,
+            "product", type,
+            "p2rMap", 0,
+            "p2rMap", -1,
+            "rate", new RealParameter(new Double[] {birthRate}));
+
+        Reaction death = new Reaction();
+        death.initByName(
+            "reactant", type,
+            "rate", new RealParameter(new Double[] {deathRate}));
+
+        PopulationSize popSize = new PopulationSize();
+        popSize.initByName(
+            "popType", type,
+            "popSize", new IntegerParameter(new Integer[] {initialSize}));
+
+        Model model = new Model();
+        model.initByName(
+            "type", type,
+            "reaction", birth,
+            "reaction", death,
+            "initialPopSize", popSize,
+            "originType", type,
+            "timeOfOrigin", new RealParameter(new Double[] {10.0}));
+
+        return model;
+    }
+
+    /**
+     * Construct a caterpillar tree whose internal nodes are birth events.
+     * Some leaves share heights, so that the tree includes groups of
+     * contemporaneous events.
+     */
+    private static ReactionTree caterpillarTree(int nLeaves, Reaction birth) {
+        Node[] nodes = new Node[2*nLeaves-1];
+        for (int i=0; i<nLeaves; i++) {
+            nodes[i] = new Node();
+            nodes[i].setNr(i);
+            nodes[i].setHeight((i % 4)*0.25);
+        }
+
+        Node subtree = nodes[0];
+        double height = 1.5;
+        for (int i=1; i<nLeaves; i++) {
+            Node parent = new Node();
+            parent.setNr(nLeaves + i - 1);
+            parent.setHeight(height);
+            parent.addChild(subtree);
+            parent.addChild(nodes[i]);
+            subtree.setParent(parent);
+            nodes[i].setParent(parent);
+
+            nodes[parent.getNr()] = parent;
+            subtree = parent;
+            height += 0.4;
+        }
+
+        ReactionTree tree = new ReactionTree();
+        tree.assignFrom(new Tree(subtree));
+        for (Node node : tree.getNodesAsArray()) {
+            if (!node.isLeaf())
+                ((ReactionNode)node).setReaction(birth);
+        }
+
+        return tree;
+    }
+
+    private static TreeDensity filter(Model model, ReactionTree tree,
+        int checkpointInterval, boolean lookahead) throws Exception {
+        WeightedPropagator propagator = new WeightedPropagator();
+        propagator.initAndValidate();
+
+        TreeDensity density = new TreeDensity();
+        density.initByName(
+            "mode", model,
+            "typedTree", tree,
+            "nParticles", N_PARTICLES,
+            "propagator", propagator,
+            "checkpointInterval", checkpointInterval,
+            "lookahead", lookahead);
+
+        return density;
+    }
+
+    /**
+     * Evaluate density using the filter seed drawn from the given
+     * Randomizer seed.  Checkpoints hold populations simulated using the
+     * seed of the evaluation which saved them, so resumed and complete
+     * runs agree only when every evaluation uses the same seed.
+     */
+    private static double evaluate(TreeDensity density, long seed)
+        throws Exception {
+        Randomizer.setSeed(seed);
+        return density.calculateLogP();
+    }
+
+    /**
+     * Move an internal node to a random height between its children and
+     * its parent, or onto the height of another node in that range.
+     */
+    private static double proposeHeight(ReactionTree tree, Node node,
+        RandomStream rng) {
+        double lo = Math.max(node.getChildren().get(0).getHeight(),
+            node.getChildren().get(1).getHeight());
+        double hi = node.isRoot() ? lo + 1.0 : node.getParent().getHeight();
+
+        List<Double> ties = new ArrayList<>();
+        for (Node other : tree.getNodesAsArray()) {
+            if (other != node && other.getHeight() > lo && other.getHeight() < hi)
+                ties.add(other.getHeight());
+        }
+
+        if (!ties.isEmpty() && rng.nextDouble() < 0.5)
+            return ties.get(rng.nextInt(ties.size()));
+
+        return lo + (hi - lo)*rng.nextDouble();
+    }
+
+    private void checkResumeMatchesFullRun(int checkpointInterval,
+        boolean lookahead) throws Exception {
+        Model model = birthDeathModel(1.0, 0.8, 100);
+        Reaction birth = model.getReactions().get(0);
+        RealParameter birthRate = birth.rateInput.get();
+
+        int nLeaves = 20;
+        ReactionTree tree = caterpillarTree(nLeaves, birth);
+        ReactionTree fullTree = caterpillarTree(nLeaves, birth);
+
+        TreeDensity density = filter(model, tree, checkpointInterval,
+            lookahead);
+        TreeDensity fullDensity = filter(model, fullTree, 0, lookahead);
+        FilterMetrics metrics = density.enableMetrics();
+        FilterMetrics fullMetrics = fullDensity.enableMetrics();
+
+        RandomStream rng = new RandomStream(checkpointInterval);
+        assertEquals(evaluate(fullDensity, SEED), evaluate(density, SEED), 0.0);
+
+        int nResumed = 0;
+        for (int step=0; step<200; step++) {
+            density.store();
+
+            int nr = nLeaves + rng.nextInt(nLeaves-1);
+            double oldHeight = tree.getNode(nr).getHeight();
+            double newHeight = proposeHeight(tree, tree.getNode(nr), rng);
+            tree.getNode(nr).setHeight(newHeight);
+            fullTree.getNode(nr).setHeight(newHeight);
+
+            double oldRate = birthRate.getValue();
+            if (step % 10 == 0)
+                birthRate.setValue(0, oldRate*(0.9 + 0.2*rng.nextDouble()));
+
+            double logP = evaluate(density, SEED);
+            double fullLogP = evaluate(fullDensity, SEED);
+
+            assertTrue(Double.isFinite(fullLogP));
+            assertEquals("step " + step, fullLogP, logP, 0.0);
+            for (int p=0; p<N_PARTICLES; p++)
+                assertArrayEquals(fullDensity.particleStates[p].counts,
+                    density.particleStates[p].counts);
+
+            if (metrics.getIntervalCount() < fullMetrics.getIntervalCount())
+                nResumed += 1;
+
+            // Reject a third of the proposals
+            if (step % 3 == 0) {
+                tree.getNode(nr).setHeight(oldHeight);
+                fullTree.getNode(nr).setHeight(oldHeight);
+                birthRate.setValue(0, oldRate);
+                density.restore();
+            }
+        }
+
+        assertTrue(nResumed > 100);
+    }
+
+    @Test
+    public void testEveryInterval() throws Exception {
+        checkResumeMatchesFullRun(1, false);
+    }
+
+    @Test
+    public void testEveryFewIntervals() throws Exception {
+        checkResumeMatchesFullRun(3, false);
+    }
+
+    @Test
+    public void testLookahead() throws Exception {
+        checkResumeMatchesFullRun(2, true);
+    }
+}